@@ -0,0 +1,44 @@
+package org.ejf;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Извлечение текстового слоя PDFBox: открытие, разбор и {@link PDFSearcherWithOCR#extractText}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    @Param({"10", "100"})
+    public int pages;
+
+    private Path dir;
+    private Path pdf;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pdf-search-bench");
+        pdf = Fixtures.textPdf(dir, pages, new Random(Fixtures.SEED));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String extractText() throws Exception {
+        try (PdfContext context = PdfContext.open(pdf)) {
+            return PDFSearcherWithOCR.extractText(context);
+        }
+    }
+}
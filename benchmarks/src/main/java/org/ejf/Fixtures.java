@@ -0,0 +1,105 @@
+package org.ejf;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Воспроизводимые данные для бенчмарков: всё генерируется из фиксированного seed,
+ * поэтому результаты разных запусков сравнимы.
+ */
+final class Fixtures {
+
+    static final long SEED = 42;
+
+    private static final String CYRILLIC = "абвгдеёжзийклмнопрстуфхцчшщъыьэюя";
+    private static final String LATIN = "abcdefghijklmnopqrstuvwxyz";
+
+    private Fixtures() {
+    }
+
+    /**
+     * OCR-like Russian text: random words, capitals, digits and punctuation
+     */
+    static String russianText(int length, Random random) {
+        StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length) {
+            int wordLength = 2 + random.nextInt(10);
+            for (int i = 0; i < wordLength; i++) {
+                char c = CYRILLIC.charAt(random.nextInt(CYRILLIC.length()));
+                text.append(i == 0 && random.nextInt(8) == 0 ? Character.toUpperCase(c) : c);
+            }
+            int separator = random.nextInt(20);
+            if (separator == 0) {
+                text.append(", ");
+            } else if (separator == 1) {
+                text.append(' ').append(1900 + random.nextInt(100)).append(' ');
+            } else if (separator == 2) {
+                text.append(".\n");
+            } else {
+                text.append(' ');
+            }
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+    /**
+     * Russian text as it looks after being decoded as Latin-1 instead of Windows-1251
+     */
+    static String mojibake(String text) {
+        return new String(text.getBytes(Charset.forName("windows-1251")), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Born-digital PDF with a full text layer, 40 lines per page
+     */
+    static Path textPdf(Path dir, int pages, Random random) throws IOException {
+        Path file = dir.resolve("text-" + pages + ".pdf");
+        try (PDDocument document = new PDDocument()) {
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 10);
+                    content.newLineAtOffset(40, 750);
+                    for (int line = 0; line < 40; line++) {
+                        content.showText(latinLine(80, random));
+                        content.newLineAtOffset(0, -17);
+                    }
+                    content.endText();
+                }
+            }
+            document.save(file.toFile());
+        }
+        return file;
+    }
+
+    private static String latinLine(int length, Random random) {
+        StringBuilder line = new StringBuilder(length);
+        while (line.length() < length) {
+            line.append(random.nextInt(7) == 0 ? ' ' : LATIN.charAt(random.nextInt(LATIN.length())));
+        }
+        return line.toString();
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
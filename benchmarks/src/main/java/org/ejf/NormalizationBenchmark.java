@@ -0,0 +1,73 @@
+package org.ejf;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Нормализация текста перед сохранением и исправление кодировки на OCR-подобных текстах разного размера.
+ * {@code regexCleanText} - прежний cleanText на регулярном выражении, для сравнения с табличной нормализацией.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NormalizationBenchmark {
+
+    @Param({"100000", "1000000", "5000000"})
+    public int length;
+
+    private String text;
+    private String mojibake;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        text = Fixtures.russianText(length, new Random(Fixtures.SEED));
+        mojibake = Fixtures.mojibake(text);
+        buffer = new char[text.length()];
+    }
+
+    private final TextNormalizer normalizer = TextNormalizer.DEFAULT;
+    private char[] buffer;
+
+    @Benchmark
+    public String cleanText() {
+        return Util.cleanText(text);
+    }
+
+    /**
+     * Прежняя реализация cleanText - точка отсчёта для табличной нормализации
+     */
+    @Benchmark
+    public String regexCleanText() {
+        return text.replaceAll("[^а-яА-Я]", "").toLowerCase();
+    }
+
+    @Benchmark
+    public String tableNormalize() {
+        return normalizer.normalize(text);
+    }
+
+    @Benchmark
+    public int tableNormalizeInPlace() {
+        // Копирование входа входит в замер, иначе со второго вызова буфер был бы уже нормализован
+        text.getChars(0, text.length(), buffer, 0);
+        return normalizer.normalizeInPlace(buffer, 0, text.length());
+    }
+
+    @Benchmark
+    public String fixCyrillicEncoding() {
+        return AdvancedPDFSearcher.fixCyrillicEncoding(mojibake);
+    }
+
+    /**
+     * Правильный текст: детектор должен пройти его один раз и вернуть без копирования
+     */
+    @Benchmark
+    public String fixCyrillicEncodingValidText() {
+        return AdvancedPDFSearcher.fixCyrillicEncoding(text);
+    }
+}
@@ -0,0 +1,60 @@
+package org.ejf;
+
+import net.sourceforge.tess4j.ITesseract;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Рендеринг и OCR одной страницы. Нужны нативный Tesseract и каталог tessdata
+ * в рабочем каталоге, как и для основной программы.
+ * <p>
+ * {@code policy}: фиксированное разрешение 150 или 300 DPI либо адаптивная политика по умолчанию.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OcrBenchmark {
+
+    @Param({"150", "300", "adaptive"})
+    public String policy;
+
+    private Path dir;
+    private PdfContext context;
+    private PDFRenderer renderer;
+    private ITesseract tesseract;
+    private AdaptiveOcr ocr;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pdf-search-bench");
+        Path pdf = Fixtures.textPdf(dir, 1, new Random(Fixtures.SEED));
+        context = PdfContext.open(pdf);
+        renderer = new PDFRenderer(context.getPDDocument());
+        tesseract = TesseractPool.createTesseract();
+        if ("adaptive".equals(policy)) {
+            ocr = AdaptiveOcr.fromSystemProperties();
+        } else {
+            int dpi = Integer.parseInt(policy);
+            ocr = new AdaptiveOcr(dpi, dpi, 0, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        context.close();
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public AdaptiveOcr.PageResult ocrPage() throws Exception {
+        return ocr.ocrPage(renderer, 0, tesseract);
+    }
+}
@@ -0,0 +1,127 @@
+package org.ejf;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск по кэшу текстов ({@link DocsCatalog}) на корпусах разного размера:
+ * запрос, который есть в части документов, запрос, которого нет нигде, пакет из 100 запросов
+ * нечёткий запрос с одной опечаткой, а также логический запрос из одного слова и из трёх
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    private static final int DOC_LENGTH = 4000;
+
+    @Param({"100", "1000", "10000"})
+    public int documents;
+
+    private Path dir;
+    private DocsCatalog catalog;
+    private String hitQuery;
+    private String missQuery;
+    private String fuzzyQuery;
+    private String termQuery;
+    private String booleanQuery;
+    private List<String> batchQueries;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Random random = new Random(Fixtures.SEED);
+        dir = Files.createTempDirectory("pdf-search-bench");
+        List<String> texts = new ArrayList<>();
+        // Тексты лежат под ключами содержимого, а манифест связывает с ними пути - как после обработки папки
+        FileManifest manifest = new FileManifest();
+        try (TextStore store = TextStore.open(dir.resolve(PDFSearcherWithOCR.O_MAPS_DOCS_STORE_DIR).toString(), null)) {
+            for (int i = 0; i < documents; i++) {
+                String text = Util.cleanText(Fixtures.russianText(DOC_LENGTH, random));
+                String ocr = Util.cleanText(Fixtures.russianText(DOC_LENGTH, random));
+                Map<String, String> docTexts = new HashMap<>();
+                docTexts.put(PDFSearcherWithOCR.TEXT_KEY, text);
+                docTexts.put(PDFSearcherWithOCR.OCR_KEY, ocr);
+                String hash = String.format("%064x", i);
+                store.put(DocsCatalog.CONTENT_KEY_PREFIX + hash, docTexts);
+                manifest.put(String.format("region-%d/doc-%05d.pdf", i % 10, i),
+                        new FileManifest.Entry(DOC_LENGTH, 0, hash));
+                texts.add(text);
+            }
+        }
+        manifest.save(dir.resolve(PDFSearcherWithOCR.O_MAPS_DOCS_MANIFEST_FILE).toString());
+        catalog = DocsCatalog.open(dir.toString(), dir);
+
+        hitQuery = texts.get(0).substring(100, 106);
+        missQuery = "щщъъыыьь";
+        // Самое длинное слово первого документа с заменённой буквой
+        String word = Arrays.stream(texts.get(0).split(" ")).max(Comparator.comparingInt(String::length)).get();
+        StringBuilder fuzzy = new StringBuilder(word);
+        fuzzy.setCharAt(word.length() / 2, word.charAt(word.length() / 2) == 'ж' ? 'ш' : 'ж');
+        fuzzyQuery = fuzzy.toString();
+        String[] words = texts.get(0).split(" ");
+        termQuery = words[10] + "*";
+        booleanQuery = words[10] + "* AND " + words[20] + " NOT " + words[30];
+        batchQueries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String text = texts.get(random.nextInt(texts.size()));
+            int start = random.nextInt(text.length() - 8);
+            batchQueries.add(text.substring(start, start + 6 + random.nextInt(3)));
+        }
+
+        // Пустой результат значил бы, что замеряется пустой цикл
+        check("searchHit", !searchHit().isEmpty());
+        check("searchBatch", searchBatch().values().stream().allMatch(paths -> !paths.isEmpty()));
+        check("searchFuzzy", !searchFuzzy().isEmpty());
+        check("queryTerm", !queryTerm().isEmpty());
+        check("searchMiss", searchMiss().isEmpty());
+    }
+
+    private static void check(String benchmark, boolean ok) {
+        if (!ok) {
+            throw new IllegalStateException(benchmark + ": unexpected result on the fixture");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        catalog.close();
+        Fixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public List<String> searchHit() {
+        return catalog.search(hitQuery);
+    }
+
+    @Benchmark
+    public List<String> searchMiss() {
+        return catalog.search(missQuery);
+    }
+
+    @Benchmark
+    public Map<String, List<String>> searchBatch() {
+        return catalog.searchBatch(batchQueries);
+    }
+
+    @Benchmark
+    public List<SearchHit> searchFuzzy() {
+        return catalog.findFuzzyHits(fuzzyQuery);
+    }
+
+    @Benchmark
+    public List<SearchHit> queryTerm() {
+        return catalog.findQueryHits(termQuery);
+    }
+
+    @Benchmark
+    public List<SearchHit> queryBoolean() {
+        return catalog.findQueryHits(booleanQuery);
+    }
+}
@@ -0,0 +1,152 @@
+package org.ejf;
+
+import net.sourceforge.tess4j.ITessAPI;
+import net.sourceforge.tess4j.ITesseract;
+import net.sourceforge.tess4j.Word;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Адаптивное OCR страницы: сначала распознаём в низком разрешении и
+ * перерисовываем страницу в высоком только если Tesseract не уверен в результате
+ * или нашёл слишком мало слов.
+ * <p>
+ * Пороги можно переопределить системными свойствами
+ * {@code ocr.lowDpi}, {@code ocr.highDpi}, {@code ocr.minConfidence}, {@code ocr.minWords}.
+ */
+public class AdaptiveOcr {
+
+    public static final int DEFAULT_LOW_DPI = 150;
+    public static final int DEFAULT_HIGH_DPI = 300; // 300 DPI для качественного OCR
+    public static final int DEFAULT_MIN_CONFIDENCE = 70;
+    public static final int DEFAULT_MIN_WORDS = 10;
+
+    private final int lowDpi;
+    private final int highDpi;
+    private final float minConfidence;
+    private final int minWords;
+
+    public AdaptiveOcr(int lowDpi, int highDpi, float minConfidence, int minWords) {
+        this.lowDpi = lowDpi;
+        this.highDpi = highDpi;
+        this.minConfidence = minConfidence;
+        this.minWords = minWords;
+    }
+
+    /**
+     * Create the policy from system properties, falling back to the defaults
+     * @return The configured policy
+     */
+    public static AdaptiveOcr fromSystemProperties() {
+        return new AdaptiveOcr(
+                Integer.getInteger("ocr.lowDpi", DEFAULT_LOW_DPI),
+                Integer.getInteger("ocr.highDpi", DEFAULT_HIGH_DPI),
+                Integer.getInteger("ocr.minConfidence", DEFAULT_MIN_CONFIDENCE),
+                Integer.getInteger("ocr.minWords", DEFAULT_MIN_WORDS));
+    }
+
+    public int getLowDpi() {
+        return lowDpi;
+    }
+
+    public int getHighDpi() {
+        return highDpi;
+    }
+
+    /**
+     * OCR one page, re-rendering it at the high DPI only if the low DPI result is poor
+     * @param renderer Renderer of the opened document
+     * @param pageIndex Zero-based page index
+     * @param tesseract Engine owned by the calling thread
+     * @return The better of the recognized variants
+     */
+    public PageResult ocrPage(PDFRenderer renderer, int pageIndex, ITesseract tesseract) throws IOException {
+        PageResult low = recognize(render(renderer, pageIndex, lowDpi), pageIndex, lowDpi, tesseract);
+        if (!needsHighDpi(low)) {
+            return low;
+        }
+        PageResult high = recognize(render(renderer, pageIndex, highDpi), pageIndex, highDpi, tesseract);
+        return better(low, high);
+    }
+
+    boolean isGoodEnough(PageResult result) {
+        return result.confidence >= minConfidence && result.words >= minWords;
+    }
+
+    /**
+     * @return Whether a low DPI result is poor enough to render the page again at the high DPI
+     */
+    boolean needsHighDpi(PageResult low) {
+        return low.dpi < highDpi && !isGoodEnough(low);
+    }
+
+    static PageResult better(PageResult low, PageResult high) {
+        return high.confidence >= low.confidence || high.words > low.words ? high : low;
+    }
+
+    /**
+     * Render a page for OCR. Tesseract binarizes the image itself, so a grayscale image
+     * (one byte per pixel instead of four) loses nothing
+     */
+    static BufferedImage render(PDFRenderer renderer, int pageIndex, int dpi) throws IOException {
+        long start = Metrics.start();
+        BufferedImage image = renderer.renderImageWithDPI(pageIndex, dpi, ImageType.GRAY);
+        Metrics.record(Metrics.Stage.PAGE_RENDER, start);
+        return image;
+    }
+
+    static PageResult recognize(BufferedImage image, int pageIndex, int dpi, ITesseract tesseract) {
+        long start = Metrics.start();
+        List<Word> words = tesseract.getWords(image, ITessAPI.TessPageIteratorLevel.RIL_WORD);
+        Metrics.record(Metrics.Stage.OCR, start);
+        return fromWords(pageIndex, dpi, words);
+    }
+
+    static PageResult fromWords(int pageIndex, int dpi, List<Word> words) {
+        StringBuilder text = new StringBuilder();
+        float confidenceSum = 0;
+        int count = 0;
+        for (Word word : words) {
+            String wordText = word.getText().trim();
+            if (wordText.isEmpty()) {
+                continue;
+            }
+            text.append(wordText).append(' ');
+            confidenceSum += word.getConfidence();
+            count++;
+        }
+        float confidence = count == 0 ? 0 : confidenceSum / count;
+        return new PageResult(pageIndex, dpi, confidence, count, text.toString());
+    }
+
+    /**
+     * Результат OCR одной страницы вместе с выбранным разрешением и средней уверенностью
+     */
+    public static class PageResult {
+        public final int pageIndex;
+        public final int dpi;
+        public final float confidence;
+        public final int words;
+        public final String text;
+
+        PageResult(int pageIndex, int dpi, float confidence, int words, String text) {
+            this.pageIndex = pageIndex;
+            this.dpi = dpi;
+            this.confidence = confidence;
+            this.words = words;
+            this.text = text;
+        }
+
+        /**
+         * Compact stats line "page:dpi:confidence:words", page numbers are 1-based
+         */
+        public String toStatsString() {
+            return String.format(Locale.ROOT, "%d:%d:%.1f:%d", pageIndex + 1, dpi, confidence, words);
+        }
+    }
+}
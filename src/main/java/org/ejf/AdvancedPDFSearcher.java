@@ -12,11 +12,10 @@ import java.util.stream.*;
 
 public class AdvancedPDFSearcher {
 
-    // Статистика для отладки
-    private static int textPDFs = 0;
-    private static int scannedPDFs = 0;
-    private static int encryptedPDFs = 0;
-    private static int errorPDFs = 0;
+    // Статистика для отладки - счётчики в Metrics потокобезопасны
+    private static final String TEXT_PDFS = "textPDFs";
+    private static final String ENCRYPTED_PDFS = "encryptedPDFs";
+    private static final String ERROR_PDFS = "errorPDFs";
 
     public static void main(String[] args) {
         if (args.length != 2) {
@@ -40,10 +39,14 @@ public class AdvancedPDFSearcher {
 
             // Вывод статистики
             System.out.println("\n=== СТАТИСТИКА ===");
+            long textPDFs = Metrics.count(TEXT_PDFS);
+            long encryptedPDFs = Metrics.count(ENCRYPTED_PDFS);
+            long errorPDFs = Metrics.count(ERROR_PDFS);
             System.out.println("Текстовых PDF: " + textPDFs);
             System.out.println("Зашифрованных PDF: " + encryptedPDFs);
             System.out.println("Ошибок обработки: " + errorPDFs);
             System.out.println("Всего обработано: " + (textPDFs + encryptedPDFs + errorPDFs));
+            System.out.println(Metrics.summary());
 
             // Вывод результатов
             System.out.println("\n=== РЕЗУЛЬТАТЫ ===");
@@ -68,40 +71,61 @@ public class AdvancedPDFSearcher {
         }
 
         // Находим все PDF
+        long start = Metrics.start();
         List<Path> pdfFiles = Files.walk(startPath)
                 .filter(Files::isRegularFile)
                 .filter(p -> p.toString().toLowerCase().endsWith(".pdf"))
                 .collect(Collectors.toList());
+        Metrics.record(Metrics.Stage.FILE_WALK, start);
 
         System.out.println("Найдено PDF файлов: " + pdfFiles.size());
 
-        List<String> foundFiles = new ArrayList<>();
+        List<String> foundFiles = Collections.synchronizedList(new ArrayList<>());
 
-        for (Path pdfPath : pdfFiles) {
-            try {
-                boolean found = processPDF(pdfPath, searchString);
-                if (found) {
-                    foundFiles.add(pdfPath.toAbsolutePath().toString());
+        // Зависший на файле разбор бросается по сроку, карантин не ведётся
+        IngestScheduler scheduler = IngestScheduler.documentTimeoutOnly(
+                Integer.getInteger("ingest.documentTimeoutSeconds", IngestScheduler.DEFAULT_DOCUMENT_TIMEOUT_SECONDS),
+                startPath);
+        try {
+            scheduler.run(pdfFiles, 1, (pdfPath, deadline) -> {
+                try {
+                    boolean found = processPDF(pdfPath, searchString);
+                    if (found) {
+                        foundFiles.add(pdfPath.toAbsolutePath().toString());
+                    }
+                } catch (Exception e) {
+                    Metrics.increment(ERROR_PDFS);
+                    System.err.println("Ошибка обработки " + pdfPath.getFileName() + ": " + e.getMessage());
                 }
-            } catch (Exception e) {
-                errorPDFs++;
-                System.err.println("Ошибка обработки " + pdfPath.getFileName() + ": " + e.getMessage());
-            }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
-        return foundFiles;
+        return new ArrayList<>(foundFiles);
     }
 
-    private static boolean processPDF(Path pdfPath, String searchText) {
+    private static boolean processPDF(Path pdfPath, String searchText) throws IOException {
         System.out.print("Обработка: " + pdfPath.getFileName() + " → ");
 
+        // Файл читается один раз, iText и PDFBox разбирают его не более одного раза
+        long start = Metrics.start();
+        try (PdfContext context = PdfContext.open(pdfPath)) {
+            boolean found = processPDF(context, searchText);
+            Metrics.recordDocument(pdfPath.toString(), start);
+            System.out.println("  [" + context.getStats() + "]");
+            return found;
+        }
+    }
+
+    private static boolean processPDF(PdfContext context, String searchText) {
         // Пробуем разные методы по порядку:
 
         // 1. Сначала iText (лучше для кириллицы)
         try {
-            boolean found = searchWithItext(pdfPath, searchText);
+            boolean found = searchWithItext(context, searchText);
             if (found) {
-                textPDFs++;
+                Metrics.increment(TEXT_PDFS);
                 return true;
             }
         } catch (Exception e) {
@@ -110,9 +134,9 @@ public class AdvancedPDFSearcher {
 
         // 2. Потом PDFBox (запасной вариант)
         try {
-            boolean found = searchWithPDFBox(pdfPath, searchText);
+            boolean found = searchWithPDFBox(context, searchText);
             if (found) {
-                textPDFs++;
+                Metrics.increment(TEXT_PDFS);
                 return true;
             }
         } catch (Exception e) {
@@ -122,7 +146,7 @@ public class AdvancedPDFSearcher {
         // 3. Если оба метода не нашли и PDF не зашифрован,
         // возможно, это сканированный PDF - нужен OCR
         try {
-            if (!isPDFEncrypted(pdfPath)) {
+            if (!isPDFEncrypted(context)) {
                 System.out.print("[возможно сканированный] ");
                 // Здесь можно добавить вызов OCR
             }
@@ -134,81 +158,69 @@ public class AdvancedPDFSearcher {
         return false;
     }
 
-    private static boolean searchWithItext(Path pdfPath, String searchText) throws IOException {
-        try (PdfDocument pdfDoc = new PdfDocument(new PdfReader(pdfPath.toString()))) {
-            if (pdfDoc.getReader().isEncrypted()) {
-                encryptedPDFs++;
-                throw new IOException("Файл зашифрован");
-            }
-
-            ITextExtractionStrategy strategy = new SimpleTextExtractionStrategy();
-            StringBuilder textBuilder = new StringBuilder();
+    private static boolean searchWithItext(PdfContext context, String searchText) throws IOException {
+        PdfDocument pdfDoc = context.getITextDocument();
+        if (pdfDoc.getReader().isEncrypted()) {
+            Metrics.increment(ENCRYPTED_PDFS);
+            throw new IOException("Файл зашифрован");
+        }
 
-            for (int i = 1; i <= pdfDoc.getNumberOfPages(); i++) {
-                PdfPage page = pdfDoc.getPage(i);
-                String pageText = PdfTextExtractor.getTextFromPage(page, strategy);
-                textBuilder.append(pageText).append(" ");
+        StreamingMatcher matcher = new StreamingMatcher(searchText);
 
-                // Проверяем по мере извлечения для оптимизации
-                if (textBuilder.toString().toLowerCase().contains(searchText)) {
-                    System.out.println("найден (iText)");
-                    return true;
-                }
+        for (int i = 1; i <= pdfDoc.getNumberOfPages(); i++) {
+            PdfPage page = pdfDoc.getPage(i);
+            // Стратегия накапливает текст, поэтому для каждой страницы нужна новая
+            ITextExtractionStrategy strategy = new SimpleTextExtractionStrategy();
+            long start = Metrics.start();
+            String pageText = PdfTextExtractor.getTextFromPage(page, strategy);
+            Metrics.record(Metrics.Stage.TEXT_EXTRACTION, start);
+
+            // Проверяем по мере извлечения, совпадение на стыке страниц тоже находится
+            matcher.feed(pageText);
+            if (matcher.feed(' ')) {
+                System.out.println("найден (iText)");
+                return true;
             }
-
-            return false;
         }
-    }
 
-    private static boolean searchWithPDFBox(Path pdfPath, String searchText) throws IOException {
-        try (PDDocument document = PDDocument.load(pdfPath.toFile())) {
-            if (document.isEncrypted()) {
-                throw new IOException("Файл зашифрован");
-            }
+        return false;
+    }
 
-            PDFTextStripper stripper = new PDFTextStripper();
-            stripper.setSortByPosition(true);
-            stripper.setShouldSeparateByBeads(false);
+    private static boolean searchWithPDFBox(PdfContext context, String searchText) throws IOException {
+        PDDocument document = context.getPDDocument();
+        if (document.isEncrypted()) {
+            throw new IOException("Файл зашифрован");
+        }
 
-            String text = stripper.getText(document);
-            text = fixCyrillicEncoding(text);
+        PDFTextStripper stripper = new PDFTextStripper();
+        stripper.setSortByPosition(true);
+        stripper.setShouldSeparateByBeads(false);
 
-            if (text.toLowerCase().contains(searchText)) {
-                System.out.println("найден (PDFBox)");
-                return true;
-            }
+        long start = Metrics.start();
+        String text = stripper.getText(document);
+        Metrics.record(Metrics.Stage.TEXT_EXTRACTION, start);
+        text = fixCyrillicEncoding(text);
 
-            return false;
+        if (text.toLowerCase().contains(searchText)) {
+            System.out.println("найден (PDFBox)");
+            return true;
         }
+
+        return false;
     }
 
-    private static boolean isPDFEncrypted(Path pdfPath) {
-        try (PdfDocument pdfDoc = new PdfDocument(new PdfReader(pdfPath.toString()))) {
-            return pdfDoc.getReader().isEncrypted();
+    private static boolean isPDFEncrypted(PdfContext context) {
+        try {
+            return context.isEncrypted();
         } catch (Exception e) {
             return false;
         }
     }
 
-    private static String fixCyrillicEncoding(String text) {
+    static String fixCyrillicEncoding(String text) {
         if (text == null) return "";
 
-        // Быстрый маппинг распространенных проблем
-        String[][] replacements = {
-                {"Ã", "А"}, {"Ð", "Д"}, {"Å", "Е"}, {"Õ", "Х"}, {"Ó", "С"},
-                {"à", "а"}, {"ð", "д"}, {"å", "е"}, {"õ", "х"}, {"ó", "с"},
-                {"Â", "В"}, {"Ï", "П"}, {"Ò", "Т"}, {"Ì", "М"}, {"Ê", "К"},
-                {"á", "б"}, {"ã", "г"}, {"è", "з"}, {"ë", "л"}, {"í", "н"},
-                {"î", "о"}, {"ï", "п"}, {"ñ", "с"}, {"ò", "т"}, {"ô", "ф"},
-                {"ö", "ц"}, {"÷", "ч"}, {"ø", "ш"}, {"ù", "щ"}, {"ú", "ъ"},
-                {"û", "ы"}, {"ü", "ь"}, {"ý", "э"}, {"þ", "ю"}, {"ÿ", "я"}
-        };
-
-        String result = text;
-        for (String[] replacement : replacements) {
-            result = result.replace(replacement[0], replacement[1]);
-        }
-
-        return result;
+        // Исправляются только слова, похожие на русский текст в Windows-1251 или KOI8-R, прочитанный как Latin-1
+        return MojibakeDecoder.decode(text);
     }
 }
\ No newline at end of file
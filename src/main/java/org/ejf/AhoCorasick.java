@@ -0,0 +1,112 @@
+package org.ejf;
+
+import java.util.*;
+
+/**
+ * Автомат Ахо-Корасик для одновременного поиска многих строк за один проход по тексту.
+ * Переходы хранятся полной таблицей по алфавиту, встречающемуся в образцах,
+ * поэтому каждый символ текста обрабатывается одним обращением к массиву.
+ */
+public class AhoCorasick {
+
+    private final String[] patterns;
+    private final int[] alphabet = new int[Character.MAX_VALUE + 1]; // символ -> номер в алфавите, 0 - нет в образцах
+    private final int[][] transitions;
+    private final int[][] outputs;
+
+    /**
+     * Build the automaton
+     * @param patterns Non-empty strings to search for
+     */
+    public AhoCorasick(List<String> patterns) {
+        this.patterns = patterns.toArray(new String[0]);
+
+        int alphabetSize = 1;
+        for (String pattern : patterns) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (alphabet[c] == 0) {
+                    alphabet[c] = alphabetSize++;
+                }
+            }
+        }
+
+        // Бор образцов
+        List<int[]> trie = new ArrayList<>();
+        List<List<Integer>> nodeOutputs = new ArrayList<>();
+        trie.add(new int[alphabetSize]);
+        nodeOutputs.add(new ArrayList<>());
+        for (int p = 0; p < this.patterns.length; p++) {
+            String pattern = this.patterns[p];
+            int node = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int symbol = alphabet[pattern.charAt(i)];
+                if (trie.get(node)[symbol] == 0) {
+                    trie.get(node)[symbol] = trie.size();
+                    trie.add(new int[alphabetSize]);
+                    nodeOutputs.add(new ArrayList<>());
+                }
+                node = trie.get(node)[symbol];
+            }
+            nodeOutputs.get(node).add(p);
+        }
+
+        // Суффиксные ссылки обходом в ширину; отсутствующие переходы сразу заменяем переходами по ссылке
+        transitions = trie.toArray(new int[0][]);
+        int[] fail = new int[transitions.length];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int symbol = 1; symbol < alphabetSize; symbol++) {
+            if (transitions[0][symbol] != 0) {
+                queue.add(transitions[0][symbol]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            nodeOutputs.get(node).addAll(nodeOutputs.get(fail[node]));
+            for (int symbol = 1; symbol < alphabetSize; symbol++) {
+                int child = transitions[node][symbol];
+                if (child != 0) {
+                    fail[child] = transitions[fail[node]][symbol];
+                    queue.add(child);
+                } else {
+                    transitions[node][symbol] = transitions[fail[node]][symbol];
+                }
+            }
+        }
+
+        outputs = new int[transitions.length][];
+        for (int node = 0; node < outputs.length; node++) {
+            List<Integer> list = nodeOutputs.get(node);
+            outputs[node] = list.isEmpty() ? null : list.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    public int size() {
+        return patterns.length;
+    }
+
+    public String pattern(int id) {
+        return patterns[id];
+    }
+
+    /**
+     * Mark every pattern that occurs in the text
+     * @param text Text to scan
+     * @param found Set bits are the ids of found patterns; bits set before the call are kept
+     */
+    public void scan(CharSequence text, BitSet found) {
+        if (text == null) {
+            return;
+        }
+        int node = 0;
+        for (int i = 0; i < text.length(); i++) {
+            node = transitions[node][alphabet[text.charAt(i)]];
+            int[] output = outputs[node];
+            if (output != null) {
+                for (int p : output) {
+                    found.set(p);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.ejf;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Пакетный поиск: файл запросов (по одному в строке) обрабатывается за один проход по всем документам.
+ * Результат - таблица "запрос \t ссылка" в выходном файле или на консоли.
+ */
+public class BatchSearch {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 4) {
+            System.out.println("Usage: java BatchSearch <folder> <queries_file> [output_file] [workers]");
+            return;
+        }
+
+        String folderPath = args[0];
+        List<String> queries = Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8).stream()
+                .map(line -> line.trim().toLowerCase())
+                .collect(Collectors.toList());
+        String outputFile = args.length > 2 ? args[2] : null;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : PDFSearcherWithOCR.DEFAULT_WORKERS;
+
+        Instant start = Instant.now();
+        Map<String, List<String>> results;
+        try (DocsCatalog catalog = DocsCatalog.open(folderPath)) {
+            catalog.ingest(workers);
+            results = catalog.searchBatch(queries);
+        }
+
+        if (outputFile != null) {
+            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, List<String>> entry : results.entrySet()) {
+                    for (String doc : entry.getValue()) {
+                        writer.write(entry.getKey() + "\t" + Main.toLink(doc));
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+
+        System.out.println("\n=== RESULTS ===");
+        for (Map.Entry<String, List<String>> entry : results.entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue().size() + " files");
+            if (outputFile == null) {
+                entry.getValue().forEach(doc -> System.out.println("  " + Main.toLink(doc)));
+            }
+        }
+        System.out.println(results.size() + " queries are done in "
+                + Util.getFormattedCurrentProgressTime(start, Instant.now()));
+    }
+}
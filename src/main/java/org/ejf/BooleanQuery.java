@@ -0,0 +1,591 @@
+package org.ejf;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Логический запрос по индексу слов ({@link WordIndex}).
+ * <p>
+ * Синтаксис: слова через пробел или {@code AND} должны встретиться все, {@code OR} - хотя бы одно,
+ * {@code NOT} или {@code -} перед словом исключают документы с ним, {@code "..."} - фраза,
+ * {@code слово*} - любое слово с этим началом, скобки группируют. Операторы пишутся заглавными:
+ * {@code район AND 1953 NOT проект}, {@code (карта OR схема) "масштаб 1 10000" -черновик}.
+ * Слова нормализуются так же, как тексты документов.
+ * <p>
+ * Перед выполнением условия {@code AND} упорядочиваются по числу документов: самое редкое слово
+ * ведёт пересечение, остальные только перепрыгивают к его документам по таблицам пропусков.
+ * Поэтому составной запрос стоит примерно как его самое редкое слово. Фраза сначала пересекает
+ * списки своих слов, а затем проверяется по тексту только у оставшихся документов.
+ */
+public final class BooleanQuery {
+
+    /**
+     * Проверка фразы по сохранённому тексту документа
+     */
+    public interface PhraseVerifier {
+        boolean contains(String docKey, String phrase);
+    }
+
+    private final Node root;
+
+    private BooleanQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @return Whether the text uses the query syntax rather than being a plain search string
+     */
+    public static boolean isBooleanQuery(String text) {
+        for (String token : tokenize(text)) {
+            if (token.equals("AND") || token.equals("OR") || token.equals("NOT") || token.equals("(")
+                    || token.startsWith("\"") || (token.startsWith("-") && token.length() > 1)
+                    || (token.endsWith("*") && token.length() > 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a query
+     * @param text The query
+     * @return The parsed query
+     * @throws IllegalArgumentException If the query is malformed or has no words
+     */
+    public static BooleanQuery parse(String text) {
+        Parser parser = new Parser(tokenize(text));
+        Node root = parser.parseOr();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.tokens.get(parser.position) + "' in the query");
+        }
+        if (root == null) {
+            throw new IllegalArgumentException("The query has no words to search");
+        }
+        return new BooleanQuery(root);
+    }
+
+    /**
+     * @return Normalized words, phrases and prefixes the matching documents contain, for locating the pages
+     */
+    public List<String> positiveTerms() {
+        List<String> terms = new ArrayList<>();
+        root.collectPositive(terms);
+        return terms;
+    }
+
+    /**
+     * Evaluate the query; must be called while holding the index lock
+     * @return Sorted ids of the matching documents
+     */
+    int[] evaluate(WordIndex index, PhraseVerifier verifier) {
+        DocIterator iterator = root.iterator(index, verifier);
+        List<Integer> docs = new ArrayList<>();
+        for (int doc = iterator.next(); doc != WordIndex.NO_MORE_DOCS; doc = iterator.next()) {
+            docs.add(doc);
+        }
+        return docs.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '"') {
+                int end = text.indexOf('"', i + 1);
+                end = end < 0 ? text.length() : end;
+                tokens.add(text.substring(i, end));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                        && "()\"".indexOf(text.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(text.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Разбор рекурсивным спуском: OR связывает слабее AND, NOT - сильнее всех
+     */
+    private static class Parser {
+        final List<String> tokens;
+        int position;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        Node parseOr() {
+            List<Node> children = new ArrayList<>();
+            addIfPresent(children, parseAnd());
+            while (accept("OR")) {
+                addIfPresent(children, parseAnd());
+            }
+            return children.isEmpty() ? null : children.size() == 1 ? children.get(0) : new Or(children);
+        }
+
+        Node parseAnd() {
+            List<Node> children = new ArrayList<>();
+            while (position < tokens.size() && !peek("OR") && !peek(")")) {
+                accept("AND");
+                addIfPresent(children, parseUnary());
+            }
+            return children.isEmpty() ? null : children.size() == 1 ? children.get(0) : new And(children);
+        }
+
+        Node parseUnary() {
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("Missing word at the end of the query");
+            }
+            if (accept("NOT")) {
+                Node child = parseUnary();
+                return child == null ? null : new Not(child);
+            }
+            String token = tokens.get(position);
+            if (token.equals("-") && position + 1 < tokens.size() && tokens.get(position + 1).startsWith("\"")) {
+                // Минус перед фразой - отдельная лексема
+                position++;
+                Node child = parseUnary();
+                return child == null ? null : new Not(child);
+            }
+            if (token.startsWith("-") && token.length() > 1) {
+                tokens.set(position, token.substring(1));
+                Node child = parseUnary();
+                return child == null ? null : new Not(child);
+            }
+            return parsePrimary();
+        }
+
+        Node parsePrimary() {
+            String token = tokens.get(position++);
+            if (token.equals("(")) {
+                Node node = parseOr();
+                if (!accept(")")) {
+                    throw new IllegalArgumentException("Missing ')' in the query");
+                }
+                return node;
+            }
+            if (token.equals(")")) {
+                throw new IllegalArgumentException("Unexpected ')' in the query");
+            }
+            if (token.startsWith("\"")) {
+                return phrase(Util.cleanText(token.substring(1)).trim());
+            }
+            boolean prefix = token.endsWith("*");
+            String word = Util.cleanText(prefix ? token.substring(0, token.length() - 1) : token).trim();
+            if (word.isEmpty()) {
+                // Слово из одних знаков препинания ничего не ограничивает
+                return null;
+            }
+            if (word.indexOf(' ') >= 0) {
+                // Нормализация разрезала слово (например, N-37) - ищем его части подряд
+                return phrase(word);
+            }
+            return prefix ? new Prefix(word) : new Term(word);
+        }
+
+        private static Node phrase(String text) {
+            if (text.isEmpty()) {
+                return null;
+            }
+            return text.indexOf(' ') < 0 ? new Term(text) : new Phrase(text);
+        }
+
+        private boolean peek(String token) {
+            return position < tokens.size() && tokens.get(position).equals(token);
+        }
+
+        private boolean accept(String token) {
+            if (peek(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private static void addIfPresent(List<Node> nodes, Node node) {
+            if (node != null) {
+                nodes.add(node);
+            }
+        }
+    }
+
+    private abstract static class Node {
+        /**
+         * @return Estimated number of matching documents
+         */
+        abstract long cost(WordIndex index);
+
+        abstract DocIterator iterator(WordIndex index, PhraseVerifier verifier);
+
+        abstract void collectPositive(List<String> terms);
+    }
+
+    private static class Term extends Node {
+        final String word;
+
+        Term(String word) {
+            this.word = word;
+        }
+
+        @Override
+        long cost(WordIndex index) {
+            return index.frequency(word);
+        }
+
+        @Override
+        DocIterator iterator(WordIndex index, PhraseVerifier verifier) {
+            return new CursorIterator(index.cursor(word));
+        }
+
+        @Override
+        void collectPositive(List<String> terms) {
+            terms.add(word);
+        }
+
+        @Override
+        public String toString() {
+            return word;
+        }
+    }
+
+    private static class Prefix extends Node {
+        final String prefix;
+
+        Prefix(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        long cost(WordIndex index) {
+            return index.prefixFrequency(prefix);
+        }
+
+        @Override
+        DocIterator iterator(WordIndex index, PhraseVerifier verifier) {
+            return new ArrayIterator(index.prefixDocuments(prefix));
+        }
+
+        @Override
+        void collectPositive(List<String> terms) {
+            terms.add(prefix);
+        }
+
+        @Override
+        public String toString() {
+            return prefix + "*";
+        }
+    }
+
+    private static class Phrase extends Node {
+        final String phrase;
+        final List<Term> words = new ArrayList<>();
+
+        Phrase(String phrase) {
+            this.phrase = phrase;
+            for (String word : new LinkedHashSet<>(Arrays.asList(phrase.split(" ")))) {
+                words.add(new Term(word));
+            }
+        }
+
+        @Override
+        long cost(WordIndex index) {
+            return words.stream().mapToLong(word -> word.cost(index)).min().orElse(0);
+        }
+
+        @Override
+        DocIterator iterator(WordIndex index, PhraseVerifier verifier) {
+            List<DocIterator> required = new ArrayList<>();
+            words.stream().sorted(Comparator.comparingLong(word -> word.cost(index)))
+                    .forEach(word -> required.add(word.iterator(index, verifier)));
+            DocIterator candidates = new Conjunction(required, Collections.emptyList());
+            return new FilterIterator(candidates, doc -> verifier.contains(index.docKey(doc), phrase));
+        }
+
+        @Override
+        void collectPositive(List<String> terms) {
+            terms.add(phrase);
+        }
+
+        @Override
+        public String toString() {
+            return "\"" + phrase + "\"";
+        }
+    }
+
+    private static class Not extends Node {
+        final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        long cost(WordIndex index) {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        DocIterator iterator(WordIndex index, PhraseVerifier verifier) {
+            // NOT сам по себе - все документы, кроме найденных
+            return new Conjunction(Collections.singletonList(new ArrayIterator(index.allDocuments())),
+                    Collections.singletonList(child.iterator(index, verifier)));
+        }
+
+        @Override
+        void collectPositive(List<String> terms) {
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + child;
+        }
+    }
+
+    private static class And extends Node {
+        final List<Node> children;
+
+        And(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        long cost(WordIndex index) {
+            return children.stream().filter(child -> !(child instanceof Not))
+                    .mapToLong(child -> child.cost(index)).min().orElse(Long.MAX_VALUE);
+        }
+
+        @Override
+        DocIterator iterator(WordIndex index, PhraseVerifier verifier) {
+            // План: обязательные условия от редкого к частому, исключающие проверяются последними
+            List<Node> required = new ArrayList<>();
+            List<DocIterator> excluded = new ArrayList<>();
+            for (Node child : children) {
+                if (child instanceof Not) {
+                    excluded.add(((Not) child).child.iterator(index, verifier));
+                } else {
+                    required.add(child);
+                }
+            }
+            List<DocIterator> iterators = new ArrayList<>();
+            if (required.isEmpty()) {
+                iterators.add(new ArrayIterator(index.allDocuments()));
+            }
+            required.stream().sorted(Comparator.comparingLong(child -> child.cost(index)))
+                    .forEach(child -> iterators.add(child.iterator(index, verifier)));
+            return new Conjunction(iterators, excluded);
+        }
+
+        @Override
+        void collectPositive(List<String> terms) {
+            children.forEach(child -> child.collectPositive(terms));
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(" AND ", "(", ")");
+            children.forEach(child -> joiner.add(child.toString()));
+            return joiner.toString();
+        }
+    }
+
+    private static class Or extends Node {
+        final List<Node> children;
+
+        Or(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        long cost(WordIndex index) {
+            long sum = 0;
+            for (Node child : children) {
+                long cost = child.cost(index);
+                sum = cost == Long.MAX_VALUE ? Long.MAX_VALUE : sum + cost;
+                if (sum == Long.MAX_VALUE) {
+                    break;
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        DocIterator iterator(WordIndex index, PhraseVerifier verifier) {
+            BitSet found = new BitSet();
+            for (Node child : children) {
+                DocIterator iterator = child.iterator(index, verifier);
+                for (int doc = iterator.next(); doc != WordIndex.NO_MORE_DOCS; doc = iterator.next()) {
+                    found.set(doc);
+                }
+            }
+            return new ArrayIterator(found.stream().toArray());
+        }
+
+        @Override
+        void collectPositive(List<String> terms) {
+            children.forEach(child -> child.collectPositive(terms));
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(" OR ", "(", ")");
+            children.forEach(child -> joiner.add(child.toString()));
+            return joiner.toString();
+        }
+    }
+
+    /**
+     * Документы по возрастанию номеров
+     */
+    private interface DocIterator {
+        int next();
+
+        int advance(int target);
+    }
+
+    private static class CursorIterator implements DocIterator {
+        final WordIndex.Cursor cursor;
+
+        CursorIterator(WordIndex.Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public int next() {
+            return cursor.next();
+        }
+
+        @Override
+        public int advance(int target) {
+            return cursor.advance(target);
+        }
+    }
+
+    private static class ArrayIterator implements DocIterator {
+        final int[] docs;
+        int index = -1;
+
+        ArrayIterator(int[] docs) {
+            this.docs = docs;
+        }
+
+        @Override
+        public int next() {
+            index++;
+            return index < docs.length ? docs[index] : WordIndex.NO_MORE_DOCS;
+        }
+
+        @Override
+        public int advance(int target) {
+            if (index >= 0 && index < docs.length && docs[index] >= target) {
+                return docs[index];
+            }
+            int found = Arrays.binarySearch(docs, Math.max(index, 0), docs.length, target);
+            index = found >= 0 ? found : -found - 1;
+            return index < docs.length ? docs[index] : WordIndex.NO_MORE_DOCS;
+        }
+    }
+
+    private static class FilterIterator implements DocIterator {
+        final DocIterator inner;
+        final IntPredicate accept;
+        int doc = -1;
+
+        FilterIterator(DocIterator inner, IntPredicate accept) {
+            this.inner = inner;
+            this.accept = accept;
+        }
+
+        @Override
+        public int next() {
+            return doc = skipRejected(inner.next());
+        }
+
+        @Override
+        public int advance(int target) {
+            // Принятый документ проверять второй раз не нужно
+            if (doc >= target) {
+                return doc;
+            }
+            return doc = skipRejected(inner.advance(target));
+        }
+
+        private int skipRejected(int doc) {
+            while (doc != WordIndex.NO_MORE_DOCS && !accept.test(doc)) {
+                doc = inner.next();
+            }
+            return doc;
+        }
+    }
+
+    /**
+     * Пересечение чехардой: первый (самый редкий) итератор предлагает документ, остальные
+     * перепрыгивают к нему; если кто-то ушёл дальше, ведущий догоняет его
+     */
+    private static class Conjunction implements DocIterator {
+        final List<DocIterator> required;
+        final List<DocIterator> excluded;
+        // Текущие документы исключающих итераторов, чтобы не сдвигать их назад
+        final int[] excludedDocs;
+        int doc = -1;
+
+        Conjunction(List<DocIterator> required, List<DocIterator> excluded) {
+            this.required = required;
+            this.excluded = excluded;
+            this.excludedDocs = new int[excluded.size()];
+            Arrays.fill(excludedDocs, -1);
+        }
+
+        @Override
+        public int next() {
+            return doc = align(required.get(0).next());
+        }
+
+        @Override
+        public int advance(int target) {
+            if (doc >= target) {
+                return doc;
+            }
+            return doc = align(required.get(0).advance(target));
+        }
+
+        private int align(int candidate) {
+            DocIterator lead = required.get(0);
+            candidates:
+            while (candidate != WordIndex.NO_MORE_DOCS) {
+                for (int i = 1; i < required.size(); i++) {
+                    int other = required.get(i).advance(candidate);
+                    if (other > candidate) {
+                        candidate = lead.advance(other);
+                        continue candidates;
+                    }
+                }
+                for (int i = 0; i < excluded.size(); i++) {
+                    if (excludedDocs[i] < candidate) {
+                        excludedDocs[i] = excluded.get(i).advance(candidate);
+                    }
+                    if (excludedDocs[i] == candidate) {
+                        candidate = lead.next();
+                        continue candidates;
+                    }
+                }
+                return candidate;
+            }
+            return candidate;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.ejf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Непрерывная дообработка папки по событиям файловой системы ({@link WatchService})
+ * вместо полного обхода при каждом запуске.
+ * <p>
+ * События по файлу копятся, пока файл не успокоится на {@code watch.debounceMillis} (по умолчанию 2000):
+ * копируемый PDF порождает серию изменений, а обработать его нужно один раз, целиком.
+ * Созданные, изменённые и удалённые PDF уходят в {@link DocsCatalog#update(Collection, int)}.
+ * <p>
+ * На сетевых папках события приходят не всегда, а при переполнении очереди теряются,
+ * поэтому раз в {@code watch.reconcileMinutes} (по умолчанию 60) выполняется полная сверка
+ * {@link DocsCatalog#ingest(int)}; она же выполняется сразу после старта.
+ */
+public class DirectoryWatcher implements Runnable, Closeable {
+
+    public static final int DEFAULT_DEBOUNCE_MILLIS = 2000;
+    public static final int DEFAULT_RECONCILE_MINUTES = 60;
+
+    private final DocsCatalog catalog;
+    private final Path root;
+    private final int workers;
+    private final long debounceNanos;
+    private final long reconcileNanos;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    // Путь -> время последнего события по нему
+    private final Map<Path, Long> pending = new LinkedHashMap<>();
+    private boolean reconcileRequested = true;
+
+    /**
+     * Create a watcher with the timings from the system properties
+     * @param catalog The catalog to keep up to date
+     * @param folderPath The docs folder of the catalog
+     * @param workers Number of extraction threads
+     */
+    public DirectoryWatcher(DocsCatalog catalog, String folderPath, int workers) throws IOException {
+        this.catalog = catalog;
+        this.root = Paths.get(folderPath);
+        this.workers = workers;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(
+                Integer.getInteger("watch.debounceMillis", DEFAULT_DEBOUNCE_MILLIS));
+        this.reconcileNanos = TimeUnit.MINUTES.toNanos(
+                Integer.getInteger("watch.reconcileMinutes", DEFAULT_RECONCILE_MINUTES));
+        this.watchService = root.getFileSystem().newWatchService();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java DirectoryWatcher <folder> [workers]");
+            return;
+        }
+
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : PDFSearcherWithOCR.DEFAULT_WORKERS;
+        Metrics.startReporting();
+        try (DocsCatalog catalog = DocsCatalog.open(args[0]);
+             DirectoryWatcher watcher = new DirectoryWatcher(catalog, args[0], workers)) {
+            watcher.run();
+        }
+    }
+
+    /**
+     * Watch the folder until the thread is interrupted or the watcher is closed
+     */
+    @Override
+    public void run() {
+        try {
+            // Регистрируемся до первой сверки, чтобы не потерять изменения, сделанные во время неё
+            registerTree(root);
+            System.out.println("Watching " + directories.size() + " directories under " + root);
+            long lastReconcile = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                if (reconcileRequested || System.nanoTime() - lastReconcile >= reconcileNanos) {
+                    reconcile();
+                    lastReconcile = System.nanoTime();
+                }
+
+                WatchKey key = watchService.poll(nextWaitMillis(), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handleEvents(key);
+                }
+                flushSettled();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Directory watching failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void handleEvents(WatchKey key) throws IOException {
+        Path dir = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // Часть событий потеряна - какие файлы изменились, неизвестно
+                System.out.println("Watch events overflowed, a full reconciliation is scheduled");
+                reconcileRequested = true;
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // Файлы могли появиться в каталоге раньше, чем он был зарегистрирован
+                registerTree(path);
+                try (Stream<Path> files = Files.walk(path)) {
+                    files.filter(DirectoryWatcher::isPdf).forEach(this::touch);
+                }
+            } else if (isPdf(path) || event.kind() == ENTRY_DELETE) {
+                // Удалённый каталог уже нельзя отличить от файла - его разберёт каталог документов
+                touch(path);
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    private void touch(Path path) {
+        pending.remove(path);
+        pending.put(path, System.nanoTime());
+    }
+
+    /**
+     * Отдать в обработку пути, по которым не было событий дольше интервала успокоения
+     */
+    private void flushSettled() {
+        long now = System.nanoTime();
+        List<Path> settled = new ArrayList<>();
+        Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> entry = it.next();
+            if (now - entry.getValue() >= debounceNanos) {
+                settled.add(entry.getKey());
+                it.remove();
+            }
+        }
+        if (settled.isEmpty()) {
+            return;
+        }
+        try {
+            catalog.update(settled, workers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("Incremental indexing failed: " + e.getMessage());
+            reconcileRequested = true;
+        }
+    }
+
+    private void reconcile() throws InterruptedException {
+        reconcileRequested = false;
+        pending.clear();
+        try {
+            catalog.ingest(workers);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            System.err.println("Reconciliation failed: " + e.getMessage());
+        }
+    }
+
+    private long nextWaitMillis() {
+        if (pending.isEmpty()) {
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(debounceNanos));
+        }
+        long oldest = pending.values().iterator().next();
+        long wait = debounceNanos - (System.nanoTime() - oldest);
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+    }
+
+    private void registerTree(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("Cannot watch " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean isPdf(Path path) {
+        return path.toString().toLowerCase().endsWith(".pdf");
+    }
+}
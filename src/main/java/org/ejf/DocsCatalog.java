@@ -0,0 +1,853 @@
+package org.ejf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.ejf.PDFSearcherWithOCR.*;
+
+/**
+ * Каталог документов папки: хранилище текстов, триграммный индекс, индекс слов и манифест файлов.
+ * Открывается один раз и может жить сколько угодно долго - поиск идёт по уже
+ * загруженному индексу, а {@link #ingest(int)} дообрабатывает новые и изменённые файлы.
+ * Если изменившиеся пути уже известны (например, от {@link DirectoryWatcher}),
+ * {@link #update(Collection, int)} обрабатывает только их, без обхода всей папки.
+ * <p>
+ * Одинаковые файлы (например, копии скана в папках разных районов) извлекаются и хранятся один раз:
+ * текст лежит под ключом хэша содержимого, манифест связывает с ним пути всех копий,
+ * а результаты поиска выводятся для каждого из этих путей. Записи, сделанные до этого
+ * без хэша, остаются под ключом пути, пока файл не изменится.
+ * <p>
+ * Поиск и обработка могут выполняться одновременно из разных потоков,
+ * но обработка в каждый момент времени идёт только одна.
+ */
+public class DocsCatalog implements Closeable {
+
+    // Подтверждать изменения файлов хэшем содержимого: -Dmanifest.hash=true
+    private static final boolean HASH_CONTENT = Boolean.getBoolean("manifest.hash");
+    public static final int DEFAULT_MAX_PAGES = 5;
+    private static final int MAX_PAGES = Integer.getInteger("search.maxPages", DEFAULT_MAX_PAGES);
+    static final String CONTENT_KEY_PREFIX = "sha256:";
+    // Путь корневой папки на сайте документов, добавляется к ссылкам: -Dsearch.pathPrefix=maps/
+    private static final String PATH_PREFIX = System.getProperty("search.pathPrefix", "");
+
+    private final Path root;
+    private final String indexFile;
+    private final String wordIndexFile;
+    private final String manifestFile;
+    private final String normalizerFile;
+    private final Path quarantineFile;
+    private final TextStore storedTexts;
+    private final TrigramIndex index;
+    private final WordIndex wordIndex;
+    private final FileManifest manifest;
+    // Ключ хранилища -> относительные пути файлов, чей текст под ним лежит
+    private final Map<String, Set<String>> pathsByStoreKey = new HashMap<>();
+
+    private DocsCatalog(Path root, Path dataDir, TextStore storedTexts, TrigramIndex index, WordIndex wordIndex,
+                        FileManifest manifest) {
+        this.root = root;
+        this.indexFile = dataDir.resolve(O_MAPS_DOCS_INDEX_FILE).toString();
+        this.wordIndexFile = dataDir.resolve(O_MAPS_DOCS_WORDS_FILE).toString();
+        this.manifestFile = dataDir.resolve(O_MAPS_DOCS_MANIFEST_FILE).toString();
+        this.normalizerFile = dataDir.resolve(O_MAPS_DOCS_NORMALIZER_FILE).toString();
+        this.quarantineFile = dataDir.resolve(O_MAPS_DOCS_QUARANTINE_FILE);
+        this.storedTexts = storedTexts;
+        this.index = index;
+        this.wordIndex = wordIndex;
+        this.manifest = manifest;
+        for (String pathKey : manifest.keySet()) {
+            pathsByStoreKey.computeIfAbsent(storeKey(pathKey, manifest.get(pathKey)), k -> new TreeSet<>()).add(pathKey);
+        }
+    }
+
+    /**
+     * Open the store, index and manifest of a docs folder from the working directory
+     * @param folderPath The docs folder
+     * @return The catalog, must be closed by the caller
+     */
+    public static DocsCatalog open(String folderPath) throws IOException {
+        return open(folderPath, Paths.get(""));
+    }
+
+    /**
+     * Open the store, index and manifest of a docs folder
+     * @param folderPath The docs folder
+     * @param dataDir Directory holding the store, index and manifest files
+     * @return The catalog, must be closed by the caller
+     */
+    public static DocsCatalog open(String folderPath, Path dataDir) throws IOException {
+        TextStore storedTexts = TextStore.open(dataDir.resolve(O_MAPS_DOCS_STORE_DIR).toString(),
+                dataDir.resolve(O_MAPS_DOCS_TEXTS_FILE).toString());
+        TrigramIndex index = TrigramIndex.loadOrBuild(dataDir.resolve(O_MAPS_DOCS_INDEX_FILE).toString(), storedTexts);
+        WordIndex wordIndex = WordIndex.loadOrBuild(dataDir.resolve(O_MAPS_DOCS_WORDS_FILE).toString(), storedTexts);
+        FileManifest manifest = FileManifest.load(dataDir.resolve(O_MAPS_DOCS_MANIFEST_FILE).toString());
+        DocsCatalog catalog = new DocsCatalog(Paths.get(folderPath), dataDir, storedTexts, index, wordIndex, manifest);
+        catalog.moveToContentKeys();
+        return catalog;
+    }
+
+    public int size() {
+        return storedTexts.size();
+    }
+
+    /**
+     * Find documents whose text or OCR contains the search text
+     * @param searchText Search text, normalized here the same way as the stored texts
+     * @return Result paths in the form printed by {@link Main}, sorted by path
+     */
+    public List<String> search(String searchText) {
+        searchText = Util.cleanText(searchText);
+        if (searchText.isEmpty()) {
+            return new ArrayList<>();
+        }
+        long start = Metrics.start();
+        // Тексты проверяем только у документов, содержащих все триграммы запроса
+        Set<String> candidates = index.candidates(searchText);
+        Collection<String> keys = candidates != null ? candidates : storedTexts.keySet();
+
+        List<String> results = new ArrayList<>();
+        for (String key : keys) {
+            // Текст читается из хранилища только у кандидатов
+            Map<String, String> storedDocTexts = storedTexts.get(key);
+            if (storedDocTexts != null && (storedDocTexts.get(TEXT_KEY).contains(searchText)
+                    || storedDocTexts.get(OCR_KEY).contains(searchText))) {
+                results.addAll(pathKeys(key));
+            }
+        }
+        Collections.sort(results);
+        Metrics.record(Metrics.Stage.QUERY, start);
+        return results.stream().map(this::resultPath).collect(Collectors.toList());
+    }
+
+    /**
+     * Find the pages of the documents that contain the search text, with a snippet around the first match on each page
+     * @param searchText Search text, normalized here the same way as the stored texts
+     * @return Hits sorted by path and page; at most {@code search.maxPages} pages per document
+     */
+    public List<SearchHit> findHits(String searchText) {
+        searchText = Util.cleanText(searchText);
+        if (searchText.isEmpty()) {
+            return new ArrayList<>();
+        }
+        long start = Metrics.start();
+        Set<String> candidates = index.candidates(searchText);
+        List<String> keys = new ArrayList<>(candidates != null ? candidates : storedTexts.keySet());
+        Collections.sort(keys);
+
+        List<SearchHit> results = new ArrayList<>();
+        for (String key : keys) {
+            Map<String, String> storedDocTexts = storedTexts.get(key);
+            if (storedDocTexts == null) {
+                continue;
+            }
+            // Страницы текстового слоя и OCR вместе, по номеру страницы; путь подставляется для каждой копии
+            Map<Integer, SearchHit> hits = new TreeMap<>();
+            PageLocator.locate(storedDocTexts, TEXT_KEY, TEXT_OFFSETS_KEY, TEXT_DISPLAY_KEY,
+                    searchText, "", hits, MAX_PAGES);
+            PageLocator.locate(storedDocTexts, OCR_KEY, OCR_OFFSETS_KEY, OCR_DISPLAY_KEY,
+                    searchText, "", hits, MAX_PAGES);
+            if (hits.size() > 1) {
+                // Страница 0 (неизвестная) не нужна, если есть точные
+                hits.remove(0);
+            }
+            addHits(results, key, hits.values());
+        }
+        sortByPath(results);
+        Metrics.record(Metrics.Stage.QUERY, start);
+        return results;
+    }
+
+    /**
+     * Find the pages of the documents that contain every word of the query with a few typos,
+     * as OCR usually makes them; see {@link FuzzyMatcher#parseQuery(String)} for the query syntax
+     * @param query Words to find, in any order
+     * @return Hits of the longest word sorted by path and page; at most {@code search.maxPages} pages per document
+     */
+    public List<SearchHit> findFuzzyHits(String query) {
+        List<FuzzyMatcher> matchers = FuzzyMatcher.parseQuery(query);
+        if (matchers.isEmpty()) {
+            return new ArrayList<>();
+        }
+        long start = Metrics.start();
+        // Кандидаты - документы, подходящие по триграммам для каждого слова
+        Set<String> candidates = null;
+        for (FuzzyMatcher matcher : matchers) {
+            Set<String> termCandidates = index.fuzzyCandidates(matcher.getPattern(), matcher.getMaxErrors());
+            if (termCandidates != null) {
+                if (candidates == null) {
+                    candidates = termCandidates;
+                } else {
+                    candidates.retainAll(termCandidates);
+                }
+            }
+        }
+        List<String> keys = new ArrayList<>(candidates != null ? candidates : storedTexts.keySet());
+        Collections.sort(keys);
+
+        List<SearchHit> results = new ArrayList<>();
+        for (String key : keys) {
+            Map<String, String> storedDocTexts = storedTexts.get(key);
+            if (storedDocTexts == null || !matchesAll(storedDocTexts, matchers)) {
+                continue;
+            }
+            // Страницы ищем по самому длинному слову - оно точнее всего указывает место
+            Map<Integer, SearchHit> hits = new TreeMap<>();
+            PageLocator.locate(storedDocTexts, TEXT_KEY, TEXT_OFFSETS_KEY, TEXT_DISPLAY_KEY,
+                    matchers.get(0), "", hits, MAX_PAGES);
+            PageLocator.locate(storedDocTexts, OCR_KEY, OCR_OFFSETS_KEY, OCR_DISPLAY_KEY,
+                    matchers.get(0), "", hits, MAX_PAGES);
+            if (hits.size() > 1) {
+                hits.remove(0);
+            }
+            addHits(results, key, hits.values());
+        }
+        sortByPath(results);
+        Metrics.record(Metrics.Stage.QUERY, start);
+        return results;
+    }
+
+    private static boolean matchesAll(Map<String, String> storedDocTexts, List<FuzzyMatcher> matchers) {
+        for (FuzzyMatcher matcher : matchers) {
+            if (matcher.find(storedDocTexts.get(TEXT_KEY), 0) < 0 && matcher.find(storedDocTexts.get(OCR_KEY), 0) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the pages of the documents matching a boolean query, with a snippet around the first match on each page
+     * @param queryText Query in the {@link BooleanQuery} syntax, e.g. {@code район AND 1953 NOT проект}
+     * @return Hits sorted by path and page; at most {@code search.maxPages} pages per document
+     * @throws IllegalArgumentException If the query is malformed
+     */
+    public List<SearchHit> findQueryHits(String queryText) {
+        BooleanQuery query = BooleanQuery.parse(queryText);
+        long start = Metrics.start();
+        List<String> keys = wordIndex.search(query, this::containsPhrase);
+        Collections.sort(keys);
+
+        List<String> terms = query.positiveTerms();
+        List<SearchHit> results = new ArrayList<>();
+        for (String key : keys) {
+            Map<String, String> storedDocTexts = storedTexts.get(key);
+            if (storedDocTexts == null) {
+                continue;
+            }
+            // Страницы - те, где встречаются слова и фразы запроса (кроме исключённых)
+            Map<Integer, SearchHit> hits = new TreeMap<>();
+            for (String term : terms) {
+                PageLocator.locate(storedDocTexts, TEXT_KEY, TEXT_OFFSETS_KEY, TEXT_DISPLAY_KEY,
+                        term, "", hits, MAX_PAGES);
+                PageLocator.locate(storedDocTexts, OCR_KEY, OCR_OFFSETS_KEY, OCR_DISPLAY_KEY,
+                        term, "", hits, MAX_PAGES);
+            }
+            if (hits.size() > 1) {
+                hits.remove(0);
+            }
+            if (hits.isEmpty()) {
+                // Запрос из одних исключений - документ подходит целиком
+                hits.put(0, new SearchHit("", 0, ""));
+            }
+            addHits(results, key, hits.values());
+        }
+        sortByPath(results);
+        Metrics.record(Metrics.Stage.QUERY, start);
+        return results;
+    }
+
+    private boolean containsPhrase(String key, String phrase) {
+        Map<String, String> storedDocTexts = storedTexts.get(key);
+        return storedDocTexts != null && (containsWords(storedDocTexts.get(TEXT_KEY), phrase)
+                || containsWords(storedDocTexts.get(OCR_KEY), phrase));
+    }
+
+    /**
+     * @return Whether the normalized text contains the words of the phrase in a row, as whole words
+     */
+    static boolean containsWords(String text, String phrase) {
+        if (text == null) {
+            return false;
+        }
+        for (int i = text.indexOf(phrase); i >= 0; i = text.indexOf(phrase, i + 1)) {
+            int end = i + phrase.length();
+            if ((i == 0 || text.charAt(i - 1) == ' ') && (end == text.length() || text.charAt(end) == ' ')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Search many strings at once: every stored document is read and scanned only once
+     * by a single Aho-Corasick automaton built from all the queries
+     * @param queries Search texts; empty lines and duplicates are ignored
+     * @return Query -> result paths in the form printed by {@link Main}, in the order of the queries
+     */
+    public Map<String, List<String>> searchBatch(List<String> queries) {
+        Map<String, List<String>> results = new LinkedHashMap<>();
+        // Запросы, совпадающие после нормализации, ищутся одним образцом и делят список результатов
+        Map<String, List<String>> byPattern = new LinkedHashMap<>();
+        for (String query : queries) {
+            String pattern = Util.cleanText(query);
+            if (pattern.isEmpty() || results.containsKey(query)) {
+                continue;
+            }
+            List<String> paths = byPattern.computeIfAbsent(pattern, k -> new ArrayList<>());
+            results.put(query, paths);
+        }
+        List<String> patterns = new ArrayList<>(byPattern.keySet());
+        if (patterns.isEmpty()) {
+            return results;
+        }
+
+        long start = Metrics.start();
+        AhoCorasick automaton = new AhoCorasick(patterns);
+        BitSet found = new BitSet(automaton.size());
+        List<String> keys = new ArrayList<>(storedTexts.keySet());
+        Collections.sort(keys);
+        for (String key : keys) {
+            Map<String, String> storedDocTexts = storedTexts.get(key);
+            if (storedDocTexts == null) {
+                continue;
+            }
+            // Поля сканируются по отдельности, чтобы совпадение не склеилось на их стыке
+            found.clear();
+            automaton.scan(storedDocTexts.get(TEXT_KEY), found);
+            automaton.scan(storedDocTexts.get(OCR_KEY), found);
+            for (int p = found.nextSetBit(0); p >= 0; p = found.nextSetBit(p + 1)) {
+                List<String> paths = byPattern.get(automaton.pattern(p));
+                for (String pathKey : pathKeys(key)) {
+                    paths.add(resultPath(pathKey));
+                }
+            }
+        }
+        // Ключи по содержимому идут не в порядке путей
+        byPattern.values().forEach(Collections::sort);
+        Metrics.record(Metrics.Stage.QUERY, start);
+        return results;
+    }
+
+    /**
+     * Bring the catalog in line with the folder: extract added and changed files,
+     * drop removed ones, then save the index and manifest
+     * @param workers Number of extraction threads
+     * @return Number of files sent to extraction
+     */
+    public synchronized int ingest(int workers) throws Exception {
+        long start = Metrics.start();
+        List<Path> pdfFiles = Files.walk(root)
+                .filter(Files::isRegularFile)
+                .filter(p -> p.toString().toLowerCase().endsWith(".pdf"))
+                .collect(Collectors.toList());
+        Metrics.record(Metrics.Stage.FILE_WALK, start);
+        System.out.println("Found " + pdfFiles.size() + " PDF files in the directory.");
+
+        FileManifest.Diff diff = manifest.diff(root, pdfFiles, HASH_CONTENT);
+        System.out.println("Changes since the last run: " + diff);
+
+        // Удалённые файлы убираем из манифеста, а их текст - когда не остаётся ни одной копии
+        for (String key : diff.removed) {
+            unmapPath(key);
+        }
+        Set<String> stale = renormalize();
+        Set<Path> unchanged = new HashSet<>(diff.unchanged);
+        unchanged.addAll(adoptLegacyEntries(pdfFiles, diff.added));
+        List<Path> toResume = new ArrayList<>(diff.added);
+        toResume.addAll(diff.changed);
+        toResume.removeAll(unchanged);
+        unchanged.addAll(resumeFromStore(toResume));
+
+        List<Path> newFiles = new ArrayList<>();
+        for (Path pdfPath : pdfFiles) {
+            String key = storeKeyOf(FileManifest.relativeKey(root, pdfPath));
+            if (!unchanged.contains(pdfPath) || !storedTexts.containsKey(key) || stale.contains(key)) {
+                newFiles.add(pdfPath);
+            }
+        }
+        extractFiles(newFiles, workers);
+
+        // Записи, которым больше не соответствует ни один файл (например, старые ключи по имени файла)
+        for (String key : new ArrayList<>(storedTexts.keySet())) {
+            if (pathKeys(key).isEmpty()) {
+                storedTexts.remove(key);
+                unindexDocument(key);
+            }
+        }
+
+        persist();
+        // Правила запоминаются, когда все документы приведены к ним; иначе сверка повторится при следующем запуске
+        String rules = TextNormalizer.DEFAULT.getRules();
+        if (stale.stream().allMatch(key -> !storedTexts.containsKey(key)
+                || rules.equals(storedTexts.get(key).get(NORM_KEY)))) {
+            saveNormalizerRules();
+        }
+        return newFiles.size();
+    }
+
+    /**
+     * Apply changes of individual paths without walking the whole folder.
+     * A path that no longer exists removes its document, or every document under it if it was a directory;
+     * an existing PDF is extracted again if its fingerprint differs from the manifest.
+     * @param paths Created, modified or deleted paths inside the folder
+     * @param workers Number of extraction threads
+     * @return Number of files sent to extraction
+     */
+    public synchronized int update(Collection<Path> paths, int workers) throws Exception {
+        List<Path> newFiles = new ArrayList<>();
+        int removed = 0;
+        for (Path path : paths) {
+            String key = FileManifest.relativeKey(root, path);
+            if (!Files.exists(path)) {
+                // Удалённый каталог приходит одним событием - убираем всё, что было под ним
+                String prefix = key + "/";
+                for (String known : new ArrayList<>(manifest.keySet())) {
+                    if (known.equals(key) || known.startsWith(prefix)) {
+                        unmapPath(known);
+                        removed++;
+                    }
+                }
+            } else if (Files.isRegularFile(path) && path.toString().toLowerCase().endsWith(".pdf")) {
+                FileManifest.Entry known = manifest.get(key);
+                FileManifest.Entry current = FileManifest.fingerprint(path, false);
+                if (known == null || known.size != current.size || known.mtime != current.mtime
+                        || !storedTexts.containsKey(storeKey(key, known))) {
+                    newFiles.add(path);
+                }
+            }
+        }
+        if (newFiles.isEmpty() && removed == 0) {
+            return 0;
+        }
+        System.out.println("Changes: " + newFiles.size() + " added or changed, " + removed + " removed");
+
+        extractFiles(newFiles, workers);
+        persist();
+        return newFiles.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        storedTexts.close();
+    }
+
+    /**
+     * Извлечь тексты файлов от дешёвых к дорогим с ограничением времени, с контрольными точками по ходу
+     */
+    private void extractFiles(List<Path> newFiles, int workers) throws Exception {
+        if (newFiles.isEmpty()) {
+            return;
+        }
+        // Из копий с одинаковым содержимым извлекается одна, остальные получают её текст
+        Map<Path, FileManifest.Entry> fingerprints = new HashMap<>();
+        Map<Path, List<Path>> copies = new HashMap<>();
+        List<Path> toExtract = groupCopies(newFiles, fingerprints, copies);
+        if (toExtract.isEmpty()) {
+            return;
+        }
+        int poolSize = Math.max(1, Math.min(workers, toExtract.size()));
+        System.out.println(toExtract.size() + " new or changed files to be processed with "
+                + poolSize + " workers");
+
+        // Хранилище дописывается после каждого документа, контрольная точка сбрасывает его на диск
+        // и сохраняет манифест. Индексы здесь не сохраняются: при загрузке они сверяют ревизии записей
+        // с хранилищем и заново индексируют документы, добавленные или перезаписанные после их сохранения
+        IngestCheckpointer checkpointer = IngestCheckpointer.fromSystemProperties(() -> {
+            storedTexts.sync();
+            manifest.save(manifestFile);
+        });
+        // Страницы рисуют потоки документов, распознают - потоки конвейера
+        OcrPipeline ocrPipeline = OcrPipeline.fromSystemProperties(poolSize);
+        IngestScheduler scheduler = IngestScheduler.fromSystemProperties(root, quarantineFile);
+        AtomicInteger counter = new AtomicInteger(1);
+        try {
+            scheduler.run(toExtract, poolSize, (pdfPath, deadline) -> {
+                processNewFile(pdfPath, fingerprints, copies.get(pdfPath), ocrPipeline, deadline,
+                        counter.getAndIncrement(), toExtract.size());
+                checkpointer.documentDone();
+            });
+        } finally {
+            ocrPipeline.close();
+            System.out.println(ocrPipeline.getStats());
+            checkpointer.checkpoint();
+        }
+    }
+
+    /**
+     * Hash the files and group them by content. Files whose content is already stored
+     * under the current normalization rules are mapped to it right away.
+     * @param newFiles Files to bring into the catalog
+     * @param fingerprints Filled with the fingerprint of every hashed file
+     * @param copies Filled with file to extract -> the other files with the same content
+     * @return Files to extract, one per unique content
+     */
+    private List<Path> groupCopies(List<Path> newFiles, Map<Path, FileManifest.Entry> fingerprints,
+                                   Map<Path, List<Path>> copies) throws IOException {
+        Map<String, List<Path>> byHash = new LinkedHashMap<>();
+        for (Path pdfPath : newFiles) {
+            try {
+                FileManifest.Entry fingerprint = FileManifest.fingerprint(pdfPath, true);
+                fingerprints.put(pdfPath, fingerprint);
+                byHash.computeIfAbsent(fingerprint.hash, k -> new ArrayList<>()).add(pdfPath);
+            } catch (IOException e) {
+                Metrics.increment("documentErrors");
+                System.out.println("ERROR: " + pdfPath.getFileName() + ": " + e.getMessage());
+            }
+        }
+
+        String rules = TextNormalizer.DEFAULT.getRules();
+        List<Path> toExtract = new ArrayList<>();
+        int reused = 0;
+        long reusedBytes = 0;
+        for (List<Path> group : byHash.values()) {
+            Path first = group.get(0);
+            String key = storeKey(null, fingerprints.get(first));
+            Map<String, String> docTexts = storedTexts.containsKey(key) ? storedTexts.get(key) : null;
+            if (docTexts != null && rules.equals(docTexts.get(NORM_KEY))) {
+                // Такое содержимое уже извлечено - из другой папки или прерванным запуском
+                for (Path pdfPath : group) {
+                    mapPath(FileManifest.relativeKey(root, pdfPath), fingerprints.get(pdfPath));
+                }
+                reused += group.size();
+                reusedBytes += group.size() * fingerprints.get(first).size;
+                continue;
+            }
+            toExtract.add(first);
+            if (group.size() > 1) {
+                copies.put(first, group.subList(1, group.size()));
+                reused += group.size() - 1;
+                reusedBytes += (group.size() - 1) * fingerprints.get(first).size;
+            }
+        }
+        if (reused > 0) {
+            System.out.println(reused + " files are copies of other files, "
+                    + reusedBytes / (1024 * 1024) + " MB not extracted again");
+            Metrics.add("documentsDeduplicated", reused);
+        }
+        return toExtract;
+    }
+
+    /**
+     * Ключ хранилища для отпечатка файла: у файла с хэшем - ключ содержимого, общий для всех копий
+     * @param pathKey Relative path of the file, the key of an entry stored before hashing
+     */
+    private static String storeKey(String pathKey, FileManifest.Entry fingerprint) {
+        return fingerprint != null && fingerprint.hash != null ? CONTENT_KEY_PREFIX + fingerprint.hash : pathKey;
+    }
+
+    private String storeKeyOf(String pathKey) {
+        return storeKey(pathKey, manifest.get(pathKey));
+    }
+
+    /**
+     * @return Relative paths of the files whose text is stored under the key, sorted
+     */
+    private List<String> pathKeys(String storeKey) {
+        synchronized (pathsByStoreKey) {
+            Set<String> paths = pathsByStoreKey.get(storeKey);
+            return paths == null ? Collections.emptyList() : new ArrayList<>(paths);
+        }
+    }
+
+    /**
+     * Record the fingerprint of a file and link it to its stored text.
+     * The text the file had before is dropped if no other file has it.
+     */
+    private void mapPath(String pathKey, FileManifest.Entry fingerprint) throws IOException {
+        String orphan;
+        synchronized (pathsByStoreKey) {
+            orphan = unlink(pathKey);
+            manifest.put(pathKey, fingerprint);
+            String key = storeKey(pathKey, fingerprint);
+            pathsByStoreKey.computeIfAbsent(key, k -> new TreeSet<>()).add(pathKey);
+            if (key.equals(orphan)) {
+                orphan = null;
+            }
+        }
+        if (orphan != null) {
+            storedTexts.remove(orphan);
+            unindexDocument(orphan);
+        }
+    }
+
+    /**
+     * Forget a file; its text is dropped if no other file has it
+     */
+    private void unmapPath(String pathKey) throws IOException {
+        String orphan;
+        synchronized (pathsByStoreKey) {
+            orphan = unlink(pathKey);
+            manifest.remove(pathKey);
+        }
+        if (orphan != null) {
+            storedTexts.remove(orphan);
+            unindexDocument(orphan);
+        }
+    }
+
+    /**
+     * @return The store key the file was linked to, if no other file is linked to it any more
+     */
+    private String unlink(String pathKey) {
+        FileManifest.Entry known = manifest.get(pathKey);
+        if (known == null) {
+            return null;
+        }
+        String key = storeKey(pathKey, known);
+        Set<String> paths = pathsByStoreKey.get(key);
+        if (paths != null) {
+            paths.remove(pathKey);
+            if (paths.isEmpty()) {
+                pathsByStoreKey.remove(key);
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * С {@code -Dmanifest.hash=true} хэш в манифесте был и раньше, а текст лежал под ключом пути.
+     * Такие записи переносим на ключ содержимого; если оно уже хранится, запись по пути просто удаляем.
+     */
+    private void moveToContentKeys() throws IOException {
+        int moved = 0;
+        for (String pathKey : new ArrayList<>(manifest.keySet())) {
+            FileManifest.Entry known = manifest.get(pathKey);
+            if (known == null || known.hash == null || !storedTexts.containsKey(pathKey)) {
+                continue;
+            }
+            String key = storeKey(pathKey, known);
+            Map<String, String> docTexts = storedTexts.get(pathKey);
+            if (docTexts != null && !storedTexts.containsKey(key)) {
+                storedTexts.put(key, docTexts);
+                indexDocument(key, docTexts);
+            }
+            storedTexts.remove(pathKey);
+            unindexDocument(pathKey);
+            moved++;
+        }
+        if (moved > 0) {
+            System.out.println(moved + " cached documents moved to content-based keys");
+            persist();
+        }
+    }
+
+    /**
+     * Разнести найденные в тексте страницы по всем файлам с этим текстом
+     */
+    private void addHits(List<SearchHit> results, String key, Collection<SearchHit> hits) {
+        for (String pathKey : pathKeys(key)) {
+            String path = resultPath(pathKey);
+            for (SearchHit hit : hits) {
+                results.add(new SearchHit(path, hit.page, hit.snippet));
+            }
+        }
+    }
+
+    /**
+     * Sort hits by path, keeping the page order within a document
+     */
+    private static void sortByPath(List<SearchHit> hits) {
+        hits.sort(Comparator.comparing(hit -> hit.path));
+    }
+
+    /**
+     * Index a document that is already in the store, at its current revision there
+     */
+    private void indexDocument(String key, Map<String, String> docTexts) {
+        long revision = storedTexts.revision(key);
+        index.addDocument(key, docTexts, revision);
+        wordIndex.addDocument(key, docTexts, revision);
+    }
+
+    private void unindexDocument(String key) {
+        index.removeDocument(key);
+        wordIndex.removeDocument(key);
+    }
+
+    private void persist() throws IOException {
+        if (storedTexts.compactIfNeeded()) {
+            index.updateRevisions(storedTexts);
+            wordIndex.updateRevisions(storedTexts);
+        }
+        index.save(indexFile);
+        wordIndex.save(wordIndexFile);
+        manifest.save(manifestFile);
+    }
+
+    /**
+     * Извлечь текст и OCR нового или изменённого файла и положить их в хранилище, индекс и манифест.
+     * Вызывается из рабочих потоков, хранилище, индекс и манифест потокобезопасны.
+     * Просрочка документа не считается ошибкой и передаётся планировщику.
+     */
+    private void processNewFile(Path pdfPath, Map<Path, FileManifest.Entry> fingerprints, List<Path> copies,
+                                OcrPipeline ocrPipeline, IngestScheduler.Deadline deadline,
+                                int number, int total) throws TimeoutException {
+        Path fileName = pdfPath.getFileName();
+        System.out.println("Processing " + fileName + " (" + number + " of " + total + ")"
+                + (copies == null ? "" : ", " + copies.size() + " copies elsewhere"));
+        long start = Metrics.start();
+        try {
+            FileManifest.Entry fingerprint = fingerprints.get(pdfPath);
+            String key = storeKey(null, fingerprint);
+            Map<String, String> storedDocTexts = PDFSearcherWithOCR.extractDocument(pdfPath, ocrPipeline, deadline);
+
+            storedDocTexts.put(SIZE_KEY, String.valueOf(fingerprint.size));
+            storedDocTexts.put(MTIME_KEY, String.valueOf(fingerprint.mtime));
+            if (fingerprint.hash != null) {
+                storedDocTexts.put(HASH_KEY, fingerprint.hash);
+            }
+            // Брошенный планировщиком поток мог доработать уже после срока - его результат не нужен.
+            // После commit планировщик его уже не бросит: документ не будет и сохранён, и просрочен
+            deadline.commit();
+            storedTexts.put(key, storedDocTexts);
+            indexDocument(key, storedDocTexts);
+            mapPath(FileManifest.relativeKey(root, pdfPath), fingerprint);
+            if (copies != null) {
+                for (Path copy : copies) {
+                    mapPath(FileManifest.relativeKey(root, copy), fingerprints.get(copy));
+                }
+            }
+            Metrics.increment("documents");
+        } catch (TimeoutException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Metrics.increment("documentErrors");
+            System.out.println("ERROR: " + e.getMessage());
+        } finally {
+            Metrics.recordDocument(pdfPath.toString(), start);
+        }
+    }
+
+    /**
+     * Поисковые тексты, нормализованные по другим правилам, несравнимы с запросами.
+     * Если правила поменялись с прошлого запуска, тексты пересчитываются из сохранённого текста страниц;
+     * документы без него (обработанные до появления постраничных смещений) нужно извлечь заново.
+     * @return Keys of the documents to extract again
+     */
+    private Set<String> renormalize() throws IOException {
+        String rules = TextNormalizer.DEFAULT.getRules();
+        Set<String> stale = new HashSet<>();
+        if (rules.equals(loadNormalizerRules())) {
+            return stale;
+        }
+        int renormalized = 0;
+        for (String key : new ArrayList<>(storedTexts.keySet())) {
+            Map<String, String> docTexts = storedTexts.get(key);
+            if (docTexts == null || rules.equals(docTexts.get(NORM_KEY))) {
+                continue;
+            }
+            Map<String, String> updated = new HashMap<>(docTexts);
+            if (!PageLocator.restore(updated, TEXT_KEY, TEXT_OFFSETS_KEY, TEXT_DISPLAY_KEY)) {
+                stale.add(key);
+                continue;
+            }
+            if (!PageLocator.restore(updated, OCR_KEY, OCR_OFFSETS_KEY, OCR_DISPLAY_KEY)) {
+                updated.put(OCR_KEY, "");
+            }
+            updated.put(NORM_KEY, rules);
+            storedTexts.put(key, updated);
+            indexDocument(key, updated);
+            renormalized++;
+        }
+        if (renormalized > 0) {
+            // Пересчитанные записи уже в хранилище, поэтому индексы по ним сохраняем сразу, не дожидаясь
+            // конца обработки; если запуск прервётся раньше, индексы сверят ревизии при загрузке
+            storedTexts.sync();
+            index.save(indexFile);
+            wordIndex.save(wordIndexFile);
+        }
+        System.out.println("Normalization rules changed to " + rules + ": " + renormalized
+                + " documents renormalized, " + stale.size() + " to be extracted again");
+        return stale;
+    }
+
+    private String loadNormalizerRules() throws IOException {
+        Path file = Paths.get(normalizerFile);
+        return Files.exists(file) ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim() : null;
+    }
+
+    private void saveNormalizerRules() throws IOException {
+        Files.write(Paths.get(normalizerFile), TextNormalizer.DEFAULT.getRules().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Файлы, обработанные прерванным запуском после последней контрольной точки, уже лежат в хранилище
+     * вместе с отпечатком. Если файл с тех пор не менялся, повторно его не извлекаем.
+     * @return Files whose texts were recovered from the store
+     */
+    private List<Path> resumeFromStore(List<Path> files) throws IOException {
+        List<Path> resumed = new ArrayList<>();
+        for (Path pdfPath : files) {
+            String key = FileManifest.relativeKey(root, pdfPath);
+            Map<String, String> docTexts = storedTexts.containsKey(key) ? storedTexts.get(key) : null;
+            if (docTexts == null || docTexts.get(SIZE_KEY) == null) {
+                continue;
+            }
+            FileManifest.Entry current = FileManifest.fingerprint(pdfPath, false);
+            if (String.valueOf(current.size).equals(docTexts.get(SIZE_KEY))
+                    && String.valueOf(current.mtime).equals(docTexts.get(MTIME_KEY))) {
+                // Запись лежит под ключом пути, поэтому хэш в манифест не пишем
+                mapPath(key, new FileManifest.Entry(current.size, current.mtime, null));
+                resumed.add(pdfPath);
+            }
+        }
+        if (!resumed.isEmpty()) {
+            System.out.println(resumed.size() + " documents recovered from an interrupted run");
+        }
+        return resumed;
+    }
+
+    /**
+     * Раньше кэш был по имени файла. Такую запись переносим на ключ по относительному пути,
+     * только если имя файла в папке уникально - иначе неизвестно, какому из файлов она принадлежит.
+     * @return Files whose texts were taken over from the old entries
+     */
+    private List<Path> adoptLegacyEntries(List<Path> pdfFiles, List<Path> added) throws IOException {
+        Map<String, Integer> nameCounts = new HashMap<>();
+        for (Path pdfPath : pdfFiles) {
+            nameCounts.merge(pdfPath.getFileName().toString(), 1, Integer::sum);
+        }
+
+        List<Path> adopted = new ArrayList<>();
+        for (Path pdfPath : added) {
+            String fileName = pdfPath.getFileName().toString();
+            String key = FileManifest.relativeKey(root, pdfPath);
+            if (nameCounts.get(fileName) != 1 || !storedTexts.containsKey(fileName)) {
+                continue;
+            }
+            if (!key.equals(fileName)) {
+                Map<String, String> docTexts = storedTexts.get(fileName);
+                if (docTexts == null) {
+                    continue;
+                }
+                storedTexts.put(key, docTexts);
+                storedTexts.remove(fileName);
+                unindexDocument(fileName);
+                indexDocument(key, docTexts);
+            }
+            mapPath(key, FileManifest.fingerprint(pdfPath, false));
+            adopted.add(pdfPath);
+        }
+        if (!adopted.isEmpty()) {
+            System.out.println(adopted.size() + " cached documents moved to path-based keys");
+        }
+        return adopted;
+    }
+
+    /**
+     * Путь результата в том виде, в каком его выводит {@link Main}: ключ пути относительно корня
+     * с префиксом {@code search.pathPrefix}
+     */
+    private String resultPath(String key) {
+        return PATH_PREFIX + key;
+    }
+}
@@ -0,0 +1,257 @@
+package org.ejf;
+
+import com.itextpdf.kernel.pdf.PdfDictionary;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfName;
+import com.itextpdf.kernel.pdf.PdfObject;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.ejf.UniversalPDFSearcher.PDFSearcher;
+
+/**
+ * Движок поиска несколькими извлекателями текста.
+ * <p>
+ * Для каждого документа определяется профиль (программа-производитель, типы шрифтов, число страниц).
+ * Извлекатели упорядочиваются по отношению доли успехов на документах этого профиля к оценке стоимости,
+ * первые {@code extractors.parallel} (по умолчанию 2) запускаются одновременно, следующий - по мере
+ * завершения предыдущих без результата. Как только один из них находит текст, остальные отменяются.
+ * Каждому извлекателю отводится не больше {@link PDFSearcher#getTimeoutMillis()}, считая с начала его работы:
+ * ожидание свободного потока или общего движка OCR в срок не входит и неудачей не считается.
+ * Потоков вдвое больше, чем одновременных попыток - отменённая попытка может ещё доделывать страницу.
+ * <p>
+ * Профиль читается отдельным открытием документа в том же пуле и не дольше {@code extractors.profileTimeoutSeconds}
+ * (по умолчанию 10): файл с разрушенной таблицей xref iText восстанавливает, читая его целиком.
+ */
+public class ExtractorEngine {
+
+    public static final int DEFAULT_PARALLEL = 2;
+    public static final int DEFAULT_PROFILE_TIMEOUT_SECONDS = 10;
+
+    private final List<PDFSearcher> searchers;
+    private final int parallel;
+    private final long profileTimeoutMillis;
+    private final ExecutorService executor;
+    // Профиль -> извлекатель -> статистика
+    private final Map<String, Map<String, Stats>> stats = new ConcurrentHashMap<>();
+
+    public ExtractorEngine(List<PDFSearcher> searchers) {
+        this.searchers = new ArrayList<>(searchers);
+        this.parallel = Math.max(1, Integer.getInteger("extractors.parallel", DEFAULT_PARALLEL));
+        this.profileTimeoutMillis = TimeUnit.SECONDS.toMillis(
+                Integer.getInteger("extractors.profileTimeoutSeconds", DEFAULT_PROFILE_TIMEOUT_SECONDS));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(parallel * 2, parallel * 2, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "extractor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * Search a document with the extractors, cheapest likely-successful first
+     * @param pdfPath The document
+     * @param searchText Lowercased search text
+     * @return Name of the extractor that found the text, or null if none did
+     */
+    public String search(Path pdfPath, String searchText) throws InterruptedException {
+        String profile = profileWithin(pdfPath);
+        Map<String, Stats> profileStats = stats.computeIfAbsent(profile, k -> new ConcurrentHashMap<>());
+        List<PDFSearcher> order = new ArrayList<>(searchers);
+        order.sort(Comparator.comparingDouble((PDFSearcher s) -> score(profileStats, s)).reversed());
+
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor);
+        Map<Future<Boolean>, Attempt> running = new HashMap<>();
+        Iterator<PDFSearcher> next = order.iterator();
+        try {
+            while (running.size() < parallel && next.hasNext()) {
+                start(completion, running, next.next(), pdfPath, searchText);
+            }
+            while (!running.isEmpty()) {
+                Future<Boolean> done = completion.poll(untilNearestDeadline(running), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    cancelExpired(running, profileStats);
+                } else {
+                    Attempt attempt = running.remove(done);
+                    // Отменённая по таймауту попытка уже учтена
+                    if (attempt != null && finished(done, attempt, profileStats)) {
+                        return attempt.searcher.getName();
+                    }
+                }
+                while (running.size() < parallel && next.hasNext()) {
+                    start(completion, running, next.next(), pdfPath, searchText);
+                }
+            }
+            return null;
+        } finally {
+            // Проигравшие и оставшиеся без дела извлекатели прерываются
+            running.keySet().forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * @return Per-profile success rates of the extractors, one line per profile
+     */
+    public String getStats() {
+        StringBuilder report = new StringBuilder();
+        new TreeMap<>(stats).forEach((profile, byExtractor) -> {
+            report.append(profile).append(':');
+            new TreeMap<>(byExtractor).forEach((name, s) -> report.append(' ').append(name).append(' ')
+                    .append(s.found.sum()).append('/').append(s.attempts.sum())
+                    .append(s.timeouts.sum() > 0 ? " (" + s.timeouts.sum() + " timeouts)" : ""));
+            report.append(System.lineSeparator());
+        });
+        return report.toString();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void start(CompletionService<Boolean> completion, Map<Future<Boolean>, Attempt> running,
+                       PDFSearcher searcher, Path pdfPath, String searchText) {
+        Attempt attempt = new Attempt(searcher);
+        Future<Boolean> future = completion.submit(() -> searcher.search(pdfPath, searchText, attempt::start));
+        running.put(future, attempt);
+    }
+
+    /**
+     * Read the profile in the pool, giving up after the profile timeout
+     */
+    private String profileWithin(Path pdfPath) throws InterruptedException {
+        Future<String> future = executor.submit(() -> profile(pdfPath));
+        try {
+            return future.get(profileTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            System.out.print("[profile timeout] ");
+            return "slow";
+        } catch (ExecutionException e) {
+            return "unreadable";
+        }
+    }
+
+    /**
+     * Учесть завершившуюся попытку
+     * @return Whether the extractor found the text
+     */
+    private boolean finished(Future<Boolean> done, Attempt attempt, Map<String, Stats> profileStats) {
+        Stats s = profileStats.computeIfAbsent(attempt.searcher.getName(), k -> new Stats());
+        s.attempts.increment();
+        if (done.isCancelled()) {
+            return false;
+        }
+        try {
+            if (done.get()) {
+                s.found.increment();
+                return true;
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            s.errors.increment();
+        }
+        return false;
+    }
+
+    private void cancelExpired(Map<Future<Boolean>, Attempt> running, Map<String, Stats> profileStats) {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Future<Boolean>, Attempt>> it = running.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Future<Boolean>, Attempt> entry = it.next();
+            Attempt attempt = entry.getValue();
+            if (now >= attempt.deadline()) {
+                entry.getKey().cancel(true);
+                it.remove();
+                Stats s = profileStats.computeIfAbsent(attempt.searcher.getName(), k -> new Stats());
+                s.attempts.increment();
+                s.timeouts.increment();
+                System.out.print("[" + attempt.searcher.getName() + " timeout] ");
+            }
+        }
+    }
+
+    private static long untilNearestDeadline(Map<Future<Boolean>, Attempt> running) {
+        long nearest = Long.MAX_VALUE;
+        for (Attempt attempt : running.values()) {
+            nearest = Math.min(nearest, attempt.deadline());
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nearest - System.nanoTime()));
+    }
+
+    /**
+     * Ожидаемая польза на единицу стоимости; доля успехов сглажена, чтобы новый профиль
+     * начинался с порядка по одной стоимости
+     */
+    private static double score(Map<String, Stats> profileStats, PDFSearcher searcher) {
+        Stats s = profileStats.get(searcher.getName());
+        double successRate = s == null ? 0.5 : (s.found.sum() + 1.0) / (s.attempts.sum() + 2.0);
+        return successRate / Math.max(1, searcher.getCost());
+    }
+
+    /**
+     * Профиль документа: производитель, типы шрифтов первых страниц и порядок числа страниц.
+     * Читается через iText - он разбирает только нужные объекты, а не весь файл.
+     */
+    static String profile(Path pdfPath) {
+        try (PdfContext context = PdfContext.open(pdfPath)) {
+            PdfDocument pdfDoc = context.getITextDocument();
+            String producer = pdfDoc.getDocumentInfo().getProducer();
+            producer = producer == null || producer.trim().isEmpty()
+                    ? "unknown" : producer.trim().split("[\\s/(]+")[0].toLowerCase();
+
+            int pages = pdfDoc.getNumberOfPages();
+            Set<String> fontTypes = new TreeSet<>();
+            for (int i = 1; i <= Math.min(pages, 3); i++) {
+                PdfDictionary fonts = pdfDoc.getPage(i).getResources().getResource(PdfName.Font);
+                if (fonts == null) {
+                    continue;
+                }
+                for (PdfName name : fonts.keySet()) {
+                    PdfObject font = fonts.get(name);
+                    if (font instanceof PdfDictionary && ((PdfDictionary) font).getAsName(PdfName.Subtype) != null) {
+                        fontTypes.add(((PdfDictionary) font).getAsName(PdfName.Subtype).getValue());
+                    }
+                }
+            }
+            String pageBucket = pages <= 1 ? "1" : pages <= 10 ? "2-10" : pages <= 100 ? "11-100" : "100+";
+            return producer + "|" + (fontTypes.isEmpty() ? "nofonts" : String.join("+", fontTypes)) + "|" + pageBucket;
+        } catch (Exception e) {
+            // Зашифрованные и повреждённые файлы - отдельный профиль
+            return "unreadable";
+        }
+    }
+
+    private static class Attempt {
+        final PDFSearcher searcher;
+        private volatile boolean started;
+        private volatile long startNanos;
+
+        Attempt(PDFSearcher searcher) {
+            this.searcher = searcher;
+        }
+
+        void start() {
+            startNanos = System.nanoTime();
+            started = true;
+        }
+
+        /**
+         * @return When the attempt runs out of time; for one that hasn't started yet - the earliest it could
+         */
+        long deadline() {
+            long timeout = TimeUnit.MILLISECONDS.toNanos(searcher.getTimeoutMillis());
+            return (started ? startNanos : System.nanoTime()) + timeout;
+        }
+    }
+
+    private static class Stats {
+        final LongAdder attempts = new LongAdder();
+        final LongAdder found = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+    }
+}
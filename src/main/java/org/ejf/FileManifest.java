@@ -0,0 +1,218 @@
+package org.ejf;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Манифест обработанных файлов: относительный путь -> размер, время изменения и хэш содержимого
+ * (у старых записей его может не быть). Сравнение манифеста с папкой делит файлы на
+ * добавленные, изменённые, удалённые и неизменные, чтобы дорогое извлечение текста
+ * запускалось только для первых двух групп.
+ * <p>
+ * Хранится в текстовом файле, одна строка на файл: {@code путь \t размер \t mtime \t хэш}.
+ */
+public class FileManifest {
+
+    private static final int HASH_BUFFER_BYTES = 1024 * 1024;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Load a manifest from a file
+     * @param filePath Path to the manifest file
+     * @return The loaded manifest, or an empty one if the file doesn't exist
+     */
+    public static FileManifest load(String filePath) {
+        FileManifest manifest = new FileManifest();
+        Path file = Paths.get(filePath);
+        if (!Files.exists(file)) {
+            return manifest;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length < 4) {
+                    continue;
+                }
+                String hash = parts[3].isEmpty() ? null : parts[3];
+                manifest.entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), hash));
+            }
+        } catch (Exception e) {
+            System.err.println("Error loading manifest from file: " + e.getMessage());
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Save the manifest to a file, replacing the old one atomically
+     * @param filePath Path to the output file
+     */
+    public void save(String filePath) {
+        Path file = Paths.get(filePath);
+        Path tmp = Paths.get(filePath + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(entry.getKey() + "\t" + value.size + "\t" + value.mtime + "\t"
+                        + (value.hash == null ? "" : value.hash));
+                writer.newLine();
+            }
+        } catch (Exception e) {
+            System.err.println("Error saving manifest to file: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error saving manifest to file: " + e.getMessage());
+        }
+    }
+
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Compare the files found on disk with the manifest.
+     * Only size and mtime are read for every file; the content hash is computed
+     * only when they differ from the manifest and hashing is enabled.
+     * @param root Folder the keys are relative to
+     * @param files PDF files found in the folder
+     * @param hashContent Whether to confirm changes by the content hash
+     * @return Files split into added, changed, unchanged and removed
+     */
+    public Diff diff(Path root, List<Path> files, boolean hashContent) throws IOException {
+        Diff diff = new Diff();
+        Set<String> seen = new HashSet<>();
+        for (Path file : files) {
+            String key = relativeKey(root, file);
+            seen.add(key);
+            Entry known = entries.get(key);
+            if (known == null) {
+                diff.added.add(file);
+                continue;
+            }
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long size = attributes.size();
+            long mtime = attributes.lastModifiedTime().toMillis();
+            if (known.size == size && known.mtime == mtime) {
+                diff.unchanged.add(file);
+            } else if (hashContent && known.hash != null && known.size == size && known.hash.equals(contentHash(file))) {
+                // Файл только "потрогали" - содержимое то же, запоминаем новое время изменения
+                entries.put(key, new Entry(size, mtime, known.hash));
+                diff.unchanged.add(file);
+            } else {
+                diff.changed.add(file);
+            }
+        }
+        for (String key : entries.keySet()) {
+            if (!seen.contains(key)) {
+                diff.removed.add(key);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * Read the current fingerprint of a file
+     * @param file The file
+     * @param hashContent Whether to compute the content hash as well
+     * @return Size, mtime and optional hash of the file
+     */
+    public static Entry fingerprint(Path file, boolean hashContent) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                hashContent ? contentHash(file) : null);
+    }
+
+    /**
+     * Hash the file content with a streaming digest
+     * @param file The file
+     * @return Hex-encoded SHA-256 of the content
+     */
+    public static String contentHash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long start = Metrics.start();
+        // Прямой буфер читается каналом без копирования в кучу; файл любого размера - за один проход
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_BYTES);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        Metrics.record(Metrics.Stage.HASH, start);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return Path of the file relative to the root, always with '/' separators
+     */
+    public static String relativeKey(Path root, Path file) {
+        return root.toAbsolutePath().normalize().relativize(file.toAbsolutePath().normalize())
+                .toString().replace('\\', '/');
+    }
+
+    /**
+     * Отпечаток файла в манифесте
+     */
+    public static class Entry {
+        public final long size;
+        public final long mtime;
+        public final String hash;
+
+        public Entry(long size, long mtime, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Результат сравнения папки с манифестом
+     */
+    public static class Diff {
+        public final List<Path> added = new ArrayList<>();
+        public final List<Path> changed = new ArrayList<>();
+        public final List<Path> unchanged = new ArrayList<>();
+        public final List<String> removed = new ArrayList<>();
+
+        @Override
+        public String toString() {
+            return added.size() + " added, " + changed.size() + " changed, "
+                    + removed.size() + " removed, " + unchanged.size() + " unchanged";
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.ejf;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Нечёткий поиск слова в тексте с ограниченным числом ошибок (вставка, удаление, замена символа)
+ * битово-параллельным алгоритмом Майерса: весь столбец динамического программирования хранится
+ * в двух 64-битных масках, на символ текста - десяток битовых операций.
+ * <p>
+ * Типичные путаницы Tesseract (и/н, о/0, одинаково выглядящие русские и латинские буквы)
+ * ошибками не считаются: такие символы совпадают друг с другом.
+ * Слова длиннее 64 символов сравниваются по первым 64.
+ */
+final class FuzzyMatcher {
+
+    static final int MAX_LENGTH = 64;
+    public static final int DEFAULT_MAX_ERRORS = 2;
+    private static final int MAX_ERRORS = Integer.getInteger("search.fuzzyMaxErrors", DEFAULT_MAX_ERRORS);
+    private static final Pattern DISTANCE = Pattern.compile("~(\\d)$");
+
+    // Классы символов, которые OCR путает между собой; в нормализованном тексте всё в нижнем регистре
+    private static final String[] CONFUSIONS = {
+            "о0o", "ин", "аa", "еe", "кk", "мm", "рp", "сc", "тt", "уy", "хx", "з3", "б6", "вb"
+    };
+    private static final Map<Character, String> EQUIVALENTS = new HashMap<>();
+
+    static {
+        for (String group : CONFUSIONS) {
+            for (char c : group.toCharArray()) {
+                EQUIVALENTS.merge(c, group, (a, b) -> a + b);
+            }
+        }
+    }
+
+    private final String pattern;
+    private final int maxErrors;
+    private final long highBit;
+    // Маски позиций символов образца: ASCII и кириллица - в массивах, остальное - в таблице
+    private final long[] asciiMasks = new long[128];
+    private final long[] cyrillicMasks = new long[256];
+    private final Map<Character, Long> otherMasks = new HashMap<>();
+
+    /**
+     * @param pattern Normalized word or phrase
+     * @param maxErrors Maximum number of edits, less than the pattern length
+     */
+    FuzzyMatcher(String pattern, int maxErrors) {
+        this.pattern = pattern.length() > MAX_LENGTH ? pattern.substring(0, MAX_LENGTH) : pattern;
+        this.maxErrors = Math.max(0, Math.min(maxErrors, this.pattern.length() - 1));
+        this.highBit = 1L << (this.pattern.length() - 1);
+        for (int i = 0; i < this.pattern.length(); i++) {
+            for (char c : equivalents(this.pattern.charAt(i)).toCharArray()) {
+                setMask(c, mask(c) | (1L << i));
+            }
+        }
+    }
+
+    /**
+     * Parse a fuzzy query: words separated by spaces, each may end with {@code ~N} to set its number of edits.
+     * Without it words up to 5 letters must match exactly, up to 8 letters may have one edit, longer ones two
+     * (but no more than {@code search.fuzzyMaxErrors}).
+     * @param query The raw query
+     * @return Matchers of the normalized words, the longest first; words that normalize to nothing are skipped
+     */
+    static List<FuzzyMatcher> parseQuery(String query) {
+        List<FuzzyMatcher> matchers = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            int maxErrors = -1;
+            Matcher distance = DISTANCE.matcher(word);
+            if (distance.find()) {
+                maxErrors = Integer.parseInt(distance.group(1));
+                word = word.substring(0, distance.start());
+            }
+            String term = Util.cleanText(word).trim();
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (maxErrors < 0) {
+                maxErrors = Math.min(MAX_ERRORS, term.length() <= 5 ? 0 : term.length() <= 8 ? 1 : 2);
+            }
+            matchers.add(new FuzzyMatcher(term, maxErrors));
+        }
+        matchers.sort(Comparator.comparingInt((FuzzyMatcher m) -> m.pattern.length()).reversed());
+        return matchers;
+    }
+
+    String getPattern() {
+        return pattern;
+    }
+
+    int getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * Find the first approximate occurrence
+     * @param text The text to search
+     * @param from Offset to start from
+     * @return End offset (exclusive) of the first occurrence with at most maxErrors edits, or -1
+     */
+    int find(CharSequence text, int from) {
+        if (text == null) {
+            return -1;
+        }
+        int m = pattern.length();
+        long pv = -1L;
+        long mv = 0;
+        int score = m;
+        for (int j = from; j < text.length(); j++) {
+            long eq = mask(text.charAt(j));
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if ((ph & highBit) != 0) {
+                score++;
+            } else if ((mh & highBit) != 0) {
+                score--;
+            }
+            // Начало совпадения может быть в любом месте текста, поэтому в младший бит ничего не вдвигаем
+            ph <<= 1;
+            mh <<= 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+            if (score <= maxErrors) {
+                return j + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The character together with the characters OCR confuses it with
+     */
+    static String equivalents(char c) {
+        String group = EQUIVALENTS.get(c);
+        return group == null ? String.valueOf(c) : group;
+    }
+
+    private long mask(char c) {
+        if (c < 128) {
+            return asciiMasks[c];
+        }
+        if (c >= 0x400 && c < 0x500) {
+            return cyrillicMasks[c - 0x400];
+        }
+        Long mask = otherMasks.get(c);
+        return mask == null ? 0 : mask;
+    }
+
+    private void setMask(char c, long mask) {
+        if (c < 128) {
+            asciiMasks[c] = mask;
+        } else if (c >= 0x400 && c < 0x500) {
+            cyrillicMasks[c - 0x400] = mask;
+        } else {
+            otherMasks.put(c, mask);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.ejf;
+
+import java.io.IOException;
+
+/**
+ * Периодические контрольные точки во время обработки новых файлов: после каждых N
+ * документов или по прошествии заданного времени сохраняется состояние, с которого
+ * можно продолжить прерванный запуск.
+ * <p>
+ * Частоту можно задать системными свойствами {@code checkpoint.docs} и {@code checkpoint.seconds},
+ * значение 0 отключает соответствующее условие.
+ */
+public class IngestCheckpointer {
+
+    public static final int DEFAULT_EVERY_DOCS = 20;
+    public static final int DEFAULT_EVERY_SECONDS = 60;
+
+    /**
+     * Действие, сохраняющее состояние
+     */
+    public interface Checkpoint {
+        void save() throws IOException;
+    }
+
+    private final int everyDocs;
+    private final long everyMillis;
+    private final Checkpoint checkpoint;
+
+    private int pendingDocs;
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    public IngestCheckpointer(int everyDocs, int everySeconds, Checkpoint checkpoint) {
+        this.everyDocs = everyDocs;
+        this.everyMillis = everySeconds * 1000L;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Create the checkpointer with the frequency from system properties, falling back to the defaults
+     * @param checkpoint The action that persists the state
+     * @return The configured checkpointer
+     */
+    public static IngestCheckpointer fromSystemProperties(Checkpoint checkpoint) {
+        return new IngestCheckpointer(
+                Integer.getInteger("checkpoint.docs", DEFAULT_EVERY_DOCS),
+                Integer.getInteger("checkpoint.seconds", DEFAULT_EVERY_SECONDS),
+                checkpoint);
+    }
+
+    /**
+     * Register one finished document and save a checkpoint if it is due.
+     * Called from worker threads.
+     */
+    public synchronized void documentDone() {
+        pendingDocs++;
+        boolean dueByCount = everyDocs > 0 && pendingDocs >= everyDocs;
+        boolean dueByTime = everyMillis > 0 && System.currentTimeMillis() - lastCheckpoint >= everyMillis;
+        if (dueByCount || dueByTime) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Save a checkpoint now if any document finished since the last one
+     */
+    public synchronized void checkpoint() {
+        if (pendingDocs == 0) {
+            return;
+        }
+        try {
+            checkpoint.save();
+            System.out.println("Checkpoint saved (" + pendingDocs + " documents)");
+            pendingDocs = 0;
+        } catch (Exception e) {
+            System.err.println("Error saving checkpoint: " + e.getMessage());
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,443 @@
+package org.ejf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Планировщик обработки документов с ограничением времени.
+ * <p>
+ * Документы обрабатываются от дешёвых к дорогим, чтобы искать можно было как можно раньше.
+ * Стоимость оценивается по размеру файла и числу страниц. Число страниц берётся без разбора документа
+ * из первых и последних {@value #SCAN_WINDOW} байт файла: из словаря линеаризации или наибольшего
+ * {@code /Count} дерева страниц (если дерево спрятано в сжатом потоке объектов - по одной странице
+ * на 100 КБ). Разовый поиск ({@link #documentTimeoutOnly}) идёт в порядке файлов.
+ * <p>
+ * Каждый документ обрабатывается не дольше {@code ingest.documentTimeoutSeconds}, каждая страница -
+ * не дольше {@code ingest.pageTimeoutSeconds}. Обработчик сам проверяет сроки между страницами
+ * ({@link Deadline}); если же он завис внутри PDFBox или Tesseract, документ через
+ * {@value #GRACE_SECONDS} с после срока бросается, а его поток прерывается и больше не ждётся.
+ * Брошенные потоки продолжают работать, поэтому их не больше числа рабочих мест: сверх этого
+ * брошенный поток держит своё место, пока не завершится. Результат документа сохраняется, только
+ * если он успел раньше срока ({@link Deadline#commit()}), иначе документ считается просроченным.
+ * Просроченные документы повторяются в конце запуска с удвоенными сроками, а после
+ * {@code ingest.maxAttempts} неудачных попыток попадают в карантин: файл карантина хранит их
+ * отпечатки, и пока файл не изменился, он пропускается. {@code -Dingest.retryQuarantined=true}
+ * снимает карантин.
+ */
+public class IngestScheduler {
+
+    public static final int DEFAULT_DOCUMENT_TIMEOUT_SECONDS = 600;
+    public static final int DEFAULT_PAGE_TIMEOUT_SECONDS = 120;
+    public static final int DEFAULT_MAX_ATTEMPTS = 2;
+    static final int GRACE_SECONDS = 30;
+    private static final long BYTES_PER_HIDDEN_PAGE = 100 * 1024;
+    static final int SCAN_WINDOW = 64 * 1024;
+    private static final Pattern LINEARIZED_PAGES = Pattern.compile("/Linearized[^>]*?/N\\s+(\\d{1,9})");
+    private static final Pattern PAGE_COUNT = Pattern.compile("/Count\\s+(\\d{1,9})");
+    // Состояния документа в проходе
+    private static final int RUNNING = 0;
+    private static final int FINISHED = 1;
+    // Брошен и перешёл на место брошенных потоков
+    private static final int ABANDONED = 2;
+    // Брошен, но мест брошенных не осталось - держит рабочее место
+    private static final int ABANDONED_IN_SLOT = 3;
+
+    /**
+     * Обработка одного документа
+     */
+    public interface Task {
+        void run(Path pdfPath, Deadline deadline) throws Exception;
+    }
+
+    private final long documentMillis;
+    private final long pageMillis;
+    private final int maxAttempts;
+    private final boolean retryQuarantined;
+    private final Path root;
+    private final Path quarantineFile;
+    private final boolean costOrdered;
+    // Ключ -> "попытки<TAB>размер<TAB>время изменения"
+    private final Map<String, String> quarantine = new TreeMap<>();
+
+    /**
+     * @param quarantineFile File listing the quarantined documents, null to keep nothing between runs
+     */
+    public IngestScheduler(int documentTimeoutSeconds, int pageTimeoutSeconds, int maxAttempts,
+                           boolean retryQuarantined, Path root, Path quarantineFile) throws IOException {
+        this(documentTimeoutSeconds, pageTimeoutSeconds, maxAttempts, retryQuarantined, root, quarantineFile, true);
+    }
+
+    private IngestScheduler(int documentTimeoutSeconds, int pageTimeoutSeconds, int maxAttempts,
+                            boolean retryQuarantined, Path root, Path quarantineFile, boolean costOrdered)
+            throws IOException {
+        this.costOrdered = costOrdered;
+        this.documentMillis = documentTimeoutSeconds * 1000L;
+        this.pageMillis = pageTimeoutSeconds * 1000L;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryQuarantined = retryQuarantined;
+        this.root = root;
+        this.quarantineFile = quarantineFile;
+        if (quarantineFile != null && Files.exists(quarantineFile)) {
+            for (String line : Files.readAllLines(quarantineFile, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    quarantine.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the scheduler with the limits from system properties, falling back to the defaults
+     * @param root The docs folder, keys of the quarantined documents are relative to it
+     * @param quarantineFile File listing the quarantined documents, null to keep nothing between runs
+     * @return The configured scheduler
+     */
+    public static IngestScheduler fromSystemProperties(Path root, Path quarantineFile) throws IOException {
+        return new IngestScheduler(
+                Integer.getInteger("ingest.documentTimeoutSeconds", DEFAULT_DOCUMENT_TIMEOUT_SECONDS),
+                Integer.getInteger("ingest.pageTimeoutSeconds", DEFAULT_PAGE_TIMEOUT_SECONDS),
+                Integer.getInteger("ingest.maxAttempts", DEFAULT_MAX_ATTEMPTS),
+                Boolean.getBoolean("ingest.retryQuarantined"),
+                root, quarantineFile);
+    }
+
+    /**
+     * Create a scheduler for a one-shot run: only the document time limit, a single attempt, no quarantine,
+     * and the files are processed in the given order, since nothing is searchable before the run ends
+     * @param documentTimeoutSeconds Time limit of one document, 0 for none
+     * @param root The docs folder
+     * @return The configured scheduler
+     */
+    public static IngestScheduler documentTimeoutOnly(int documentTimeoutSeconds, Path root) throws IOException {
+        return new IngestScheduler(documentTimeoutSeconds, 0, 1, false, root, null, false);
+    }
+
+    /**
+     * Process the documents cheapest first within the time limits, retrying the timed out ones at the end
+     * @param files Documents to process
+     * @param workers Number of documents processed at once
+     * @param task Processing of one document
+     * @return Documents that timed out on every attempt and are now quarantined
+     */
+    public List<Path> run(List<Path> files, int workers, Task task) throws IOException, InterruptedException {
+        List<Path> queue = new ArrayList<>();
+        for (Path file : files) {
+            if (isQuarantined(file)) {
+                System.out.println(file.getFileName() + " is quarantined after timeouts, skipped");
+                Metrics.increment("documentsQuarantined");
+            } else {
+                queue.add(file);
+            }
+        }
+        if (costOrdered) {
+            queue = orderByCost(queue);
+        }
+
+        List<Path> failed = new ArrayList<>();
+        // Места общие для всех проходов: брошенные на прошлом проходе потоки ещё могут работать
+        Semaphore slots = new Semaphore(Math.max(1, workers));
+        Semaphore abandonedSlots = new Semaphore(Math.max(1, workers));
+        long factor = 1;
+        for (int attempt = 1; attempt <= maxAttempts && !queue.isEmpty(); attempt++) {
+            if (attempt > 1) {
+                System.out.println("Retrying " + queue.size() + " timed out documents with " + factor
+                        + "x time limits");
+            }
+            queue = runPass(queue, slots, abandonedSlots, task, documentMillis * factor, pageMillis * factor);
+            factor *= 2;
+        }
+        for (Path file : queue) {
+            failed.add(file);
+            if (Files.exists(file)) {
+                FileManifest.Entry fingerprint = FileManifest.fingerprint(file, false);
+                quarantine.put(FileManifest.relativeKey(root, file),
+                        maxAttempts + "\t" + fingerprint.size + "\t" + fingerprint.mtime);
+            }
+        }
+        // Обработанные документы из карантина выходят
+        for (Path file : files) {
+            if (!queue.contains(file) && !isQuarantined(file)) {
+                quarantine.remove(FileManifest.relativeKey(root, file));
+            }
+        }
+        save();
+        if (!failed.isEmpty()) {
+            System.out.println(failed.size() + " documents quarantined after timeouts: " + failed);
+        }
+        return failed;
+    }
+
+    /**
+     * @return Whether the file timed out on every attempt and hasn't changed since
+     */
+    public boolean isQuarantined(Path file) {
+        if (retryQuarantined) {
+            return false;
+        }
+        String entry = quarantine.get(FileManifest.relativeKey(root, file));
+        if (entry == null || !Files.exists(file)) {
+            return false;
+        }
+        try {
+            FileManifest.Entry fingerprint = FileManifest.fingerprint(file, false);
+            return entry.endsWith("\t" + fingerprint.size + "\t" + fingerprint.mtime);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Order documents by estimated cost, cheapest first
+     */
+    static List<Path> orderByCost(List<Path> files) {
+        Map<Path, Long> costs = new HashMap<>();
+        for (Path file : files) {
+            try {
+                costs.put(file, estimateCost(file));
+            } catch (IOException e) {
+                // Нечитаемый файл обработчик всё равно попробует - последним
+                costs.put(file, Long.MAX_VALUE);
+            }
+        }
+        List<Path> ordered = new ArrayList<>(files);
+        ordered.sort(Comparator.comparingLong(costs::get));
+        return ordered;
+    }
+
+    /**
+     * Estimate the processing cost of a document without parsing it: pages plus megabytes
+     */
+    static long estimateCost(Path file) throws IOException {
+        long size = Files.size(file);
+        long pages = countPages(file);
+        if (pages == 0) {
+            pages = Math.max(1, size / BYTES_PER_HIDDEN_PAGE);
+        }
+        return pages + size / (1024 * 1024);
+    }
+
+    /**
+     * Find the number of pages in the head and the tail of the raw file: the page count of a linearized file,
+     * otherwise the largest {@code /Count} of the page tree
+     * @return The number of pages, 0 if the page tree isn't there in plain text
+     */
+    static long countPages(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String head = read(channel, 0, (int) Math.min(size, SCAN_WINDOW));
+            Matcher linearized = LINEARIZED_PAGES.matcher(head);
+            if (linearized.find()) {
+                return Long.parseLong(linearized.group(1));
+            }
+            long pages = maxPageCount(head);
+            if (size > SCAN_WINDOW) {
+                long tailStart = Math.max(SCAN_WINDOW, size - SCAN_WINDOW);
+                pages = Math.max(pages, maxPageCount(read(channel, tailStart, (int) (size - tailStart))));
+            }
+            return pages;
+        }
+    }
+
+    private static String read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        int read;
+        do {
+            read = channel.read(buffer, position + buffer.position());
+        } while (read >= 0 && buffer.hasRemaining());
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static long maxPageCount(String text) {
+        long pages = 0;
+        Matcher count = PAGE_COUNT.matcher(text);
+        while (count.find()) {
+            pages = Math.max(pages, Long.parseLong(count.group(1)));
+        }
+        return pages;
+    }
+
+    /**
+     * One pass over the queue
+     * @param slots Places of the documents being processed
+     * @param abandonedSlots Places of the abandoned threads that still run
+     * @return Documents that timed out
+     */
+    private List<Path> runPass(List<Path> queue, Semaphore slots, Semaphore abandonedSlots, Task task,
+                               long documentLimit, long pageLimit) throws InterruptedException {
+        CountDownLatch settled = new CountDownLatch(queue.size());
+        List<Path> timedOut = Collections.synchronizedList(new ArrayList<>());
+        // Потоки обработки - демоны: зависший поток не должен мешать завершению программы
+        ExecutorService threads = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ingest");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ingest-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (Path file : queue) {
+                slots.acquire();
+                Deadline deadline = new Deadline(documentLimit, pageLimit);
+                AtomicInteger state = new AtomicInteger(RUNNING);
+                Future<?> future = threads.submit(() -> {
+                    try {
+                        task.run(file, deadline);
+                    } catch (TimeoutException e) {
+                        System.out.println(file.getFileName() + ": " + e.getMessage());
+                        timedOut.add(file);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        Metrics.increment("documentErrors");
+                        System.out.println("ERROR: " + file.getFileName() + ": " + e.getMessage());
+                    } finally {
+                        // Место освобождает тот, кто его держит
+                        switch (state.getAndSet(FINISHED)) {
+                            case RUNNING:
+                                slots.release();
+                                settled.countDown();
+                                break;
+                            case ABANDONED:
+                                abandonedSlots.release();
+                                break;
+                            case ABANDONED_IN_SLOT:
+                                slots.release();
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                });
+                if (documentLimit <= 0) {
+                    continue;
+                }
+                watchdog.schedule(() -> {
+                    // Документ, уже сохраняющий результат, не бросается - он вот-вот завершится
+                    if (state.get() != RUNNING || !deadline.expire()) {
+                        return;
+                    }
+                    // Обработчик завис внутри библиотеки - не ждём его; его место отдаём следующему
+                    // документу, если есть место для брошенного потока
+                    boolean moved = abandonedSlots.tryAcquire();
+                    if (!state.compareAndSet(RUNNING, moved ? ABANDONED : ABANDONED_IN_SLOT)) {
+                        if (moved) {
+                            abandonedSlots.release();
+                        }
+                        return;
+                    }
+                    System.out.println(file.getFileName() + ": no progress within the time limit, abandoned");
+                    Metrics.increment("documentsAbandoned");
+                    future.cancel(true);
+                    timedOut.add(file);
+                    if (moved) {
+                        slots.release();
+                    }
+                    settled.countDown();
+                }, documentLimit + GRACE_SECONDS * 1000L, TimeUnit.MILLISECONDS);
+            }
+            settled.await();
+        } finally {
+            watchdog.shutdownNow();
+            threads.shutdown();
+        }
+        Metrics.add("documentTimeouts", timedOut.size());
+        return new ArrayList<>(new LinkedHashSet<>(timedOut));
+    }
+
+    private void save() throws IOException {
+        if (quarantineFile == null || quarantine.isEmpty() && !Files.exists(quarantineFile)) {
+            return;
+        }
+        StringBuilder content = new StringBuilder();
+        quarantine.forEach((key, entry) -> content.append(key).append('\t').append(entry).append('\n'));
+        Files.write(quarantineFile, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Сроки обработки одного документа. Обработчик проверяет их между страницами;
+     * просроченный документ прерывается {@link TimeoutException}.
+     */
+    public static class Deadline {
+        // Без ограничений - для обработки вне планировщика
+        public static final Deadline NONE = new Deadline(0, 0);
+
+        // Нулевой срок - без ограничения
+        private final long documentNanos;
+        private final long pageNanos;
+        private final long start = System.nanoTime();
+        // RUNNING; FINISHED - результат уже сохраняется; ABANDONED - документ брошен планировщиком
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+        Deadline(long documentMillis, long pageMillis) {
+            this.documentNanos = documentMillis > 0 ? documentMillis * 1_000_000 : 0;
+            this.pageNanos = pageMillis > 0 ? pageMillis * 1_000_000 : 0;
+        }
+
+        /**
+         * @throws TimeoutException If the document is out of time
+         */
+        public void check() throws TimeoutException {
+            if (state.get() == ABANDONED || (documentNanos > 0 && System.nanoTime() - start > documentNanos)) {
+                throw new TimeoutException("document time limit exceeded");
+            }
+        }
+
+        /**
+         * @param pageIndex Zero-based index of the page
+         * @param elapsedNanos Time the page has taken
+         * @throws TimeoutException If the page or the document is out of time
+         */
+        public void checkPage(int pageIndex, long elapsedNanos) throws TimeoutException {
+            check();
+            if (pageNanos > 0 && elapsedNanos > pageNanos) {
+                throw new TimeoutException("page " + (pageIndex + 1) + " time limit exceeded");
+            }
+        }
+
+        /**
+         * @return Time a page starting now may take within the page and the document limits,
+         *         {@code Long.MAX_VALUE} if there are none
+         */
+        public long remainingNanos() {
+            if (state.get() == ABANDONED) {
+                return 0;
+            }
+            long remaining = documentNanos > 0 ? documentNanos - (System.nanoTime() - start) : Long.MAX_VALUE;
+            if (pageNanos > 0) {
+                remaining = Math.min(remaining, pageNanos);
+            }
+            return Math.max(0, remaining);
+        }
+
+        /**
+         * Claim the document's result before storing it, so the scheduler can no longer abandon the document
+         * @throws TimeoutException If the document is out of time or already abandoned
+         */
+        public void commit() throws TimeoutException {
+            check();
+            if (state.compareAndExchange(RUNNING, FINISHED) == ABANDONED) {
+                throw new TimeoutException("document time limit exceeded");
+            }
+        }
+
+        /**
+         * @return False if the document's result is already being stored
+         */
+        boolean expire() {
+            int previous = state.compareAndExchange(RUNNING, ABANDONED);
+            return previous != FINISHED;
+        }
+    }
+}
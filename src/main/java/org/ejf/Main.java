@@ -4,18 +4,33 @@ import java.util.List;
 
 public class Main {
 
+    public static final String DOCS_URL = "https://o-maps.spb.ru/docs/";
+
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
-            System.out.println("Usage: java PDFSearcherWithOCR <folder> <search_text>");
+        if (args.length != 2 && args.length != 3) {
+            System.out.println("Usage: java PDFSearcherWithOCR <folder> <search_text> [workers]");
             return;
         }
 
         String folderPath = args[0];
-        String searchText = args[1].toLowerCase();
+        // Регистр не меняем: операторы запроса пишутся заглавными, а слова нормализуются при поиске
+        String searchText = args[1];
+        int workers = args.length == 3 ? Integer.parseInt(args[2]) : PDFSearcherWithOCR.DEFAULT_WORKERS;
 
-        List<String> result = PDFSearcherWithOCR.process(folderPath, searchText);
-        result.forEach(doc -> {
-            System.out.println("https://o-maps.spb.ru/docs/" + doc.replace("\\", "/"));
+        List<SearchHit> result = PDFSearcherWithOCR.process(folderPath, searchText, workers);
+        result.forEach(hit -> {
+            System.out.println(toLink(hit) + (hit.snippet.isEmpty() ? "" : "  " + hit.snippet));
         });
     }
+
+    static String toLink(String doc) {
+        return DOCS_URL + doc.replace("\\", "/");
+    }
+
+    /**
+     * @return Link to the document, opening the page of the hit in browsers' PDF viewers
+     */
+    static String toLink(SearchHit hit) {
+        return toLink(hit.path) + (hit.page > 0 ? "#page=" + hit.page : "");
+    }
 }
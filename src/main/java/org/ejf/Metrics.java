@@ -0,0 +1,249 @@
+package org.ejf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики обработки и поиска: счётчики и гистограммы длительности по этапам.
+ * Потокобезопасны и дёшевы - запись в гистограмму это одно увеличение {@link LongAdder}.
+ * <p>
+ * Сводка периодически печатается одной строкой ({@code metrics.logSeconds}, по умолчанию 60, 0 - выключено)
+ * и, если задано {@code metrics.file}, полностью записывается в этот файл.
+ */
+public final class Metrics {
+
+    /**
+     * Этапы, время которых измеряется
+     */
+    public enum Stage {
+        FILE_WALK("walk"),
+        HASH("hash"),
+        PDF_LOAD("load"),
+        TEXT_EXTRACTION("extract"),
+        PAGE_RENDER("render"),
+        IMAGE_DECODE("decode"),
+        OCR("ocr"),
+        NORMALIZATION("normalize"),
+        CACHE_IO("cacheIo"),
+        QUERY("query"),
+        DOCUMENT("document");
+
+        final String label;
+        final Histogram histogram = new Histogram();
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    public static final int DEFAULT_LOG_SECONDS = 60;
+    private static final int SLOWEST_DOCUMENTS = 10;
+
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    // Самые долгие документы - по ним видно патологические файлы
+    private static final PriorityQueue<Map.Entry<String, Long>> slowest =
+            new PriorityQueue<>(Map.Entry.comparingByValue());
+    private static ScheduledExecutorService reporter;
+
+    private Metrics() {
+    }
+
+    /**
+     * @return Start mark to pass to {@link #record(Stage, long)}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time elapsed since the start mark
+     * @param stage The measured stage
+     * @param startNanos Value returned by {@link #start()}
+     * @return The elapsed time in nanoseconds
+     */
+    public static long record(Stage stage, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        stage.histogram.add(nanos);
+        return nanos;
+    }
+
+    /**
+     * Record the total processing time of one document and remember it if it is among the slowest
+     */
+    public static void recordDocument(String document, long startNanos) {
+        long nanos = record(Stage.DOCUMENT, startNanos);
+        synchronized (slowest) {
+            slowest.add(new AbstractMap.SimpleImmutableEntry<>(document, nanos));
+            if (slowest.size() > SLOWEST_DOCUMENTS) {
+                slowest.poll();
+            }
+        }
+    }
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void add(String counter, long value) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(value);
+    }
+
+    public static long count(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * @return One-line summary: count and p95 of every stage that ran, then the counters
+     */
+    public static String summary() {
+        StringBuilder line = new StringBuilder("metrics:");
+        for (Stage stage : Stage.values()) {
+            long count = stage.histogram.count();
+            if (count > 0) {
+                line.append(' ').append(stage.label).append('=').append(count)
+                        .append("/p95 ").append(formatNanos(stage.histogram.percentile(0.95)));
+            }
+        }
+        counters.forEach((name, value) -> line.append(' ').append(name).append('=').append(value.sum()));
+        return line.toString();
+    }
+
+    /**
+     * @return Full report: a line per stage with count, total and percentiles, the counters and the slowest documents
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-10s %10s %10s %10s %10s %10s %10s%n",
+                "stage", "count", "total", "p50", "p95", "p99", "max"));
+        for (Stage stage : Stage.values()) {
+            Histogram h = stage.histogram;
+            report.append(String.format("%-10s %10d %10s %10s %10s %10s %10s%n", stage.label, h.count(),
+                    formatNanos(h.total()), formatNanos(h.percentile(0.5)), formatNanos(h.percentile(0.95)),
+                    formatNanos(h.percentile(0.99)), formatNanos(h.max())));
+        }
+        report.append(System.lineSeparator());
+        counters.forEach((name, value) -> report.append(name).append(' ').append(value.sum()).append(System.lineSeparator()));
+
+        List<Map.Entry<String, Long>> documents;
+        synchronized (slowest) {
+            documents = new ArrayList<>(slowest);
+        }
+        if (!documents.isEmpty()) {
+            documents.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+            report.append(System.lineSeparator()).append("slowest documents:").append(System.lineSeparator());
+            documents.forEach(doc -> report.append(formatNanos(doc.getValue())).append(' ')
+                    .append(doc.getKey()).append(System.lineSeparator()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Start the periodic log line and metrics file, if they are enabled. Calling it again does nothing.
+     */
+    public static synchronized void startReporting() {
+        int seconds = Integer.getInteger("metrics.logSeconds", DEFAULT_LOG_SECONDS);
+        if (reporter != null || seconds <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            System.out.println(summary());
+            writeFile();
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write the full report to the file from {@code metrics.file}, if it is set
+     */
+    public static void writeFile() {
+        String file = System.getProperty("metrics.file");
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.write(Paths.get(file), report().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Error writing metrics to file: " + e.getMessage());
+        }
+    }
+
+    static String formatNanos(long nanos) {
+        if (nanos < 1_000_000) {
+            return nanos / 1000 + "us";
+        }
+        if (nanos < 10_000_000_000L) {
+            return nanos / 1_000_000 + "ms";
+        }
+        return nanos / 1_000_000_000 + "s";
+    }
+
+    /**
+     * Гистограмма с корзинами по степеням двойки наносекунд; процентили приблизительные
+     * (верхняя граница корзины), зато запись не требует блокировок
+     */
+    static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void add(long nanos) {
+            nanos = Math.max(nanos, 0);
+            buckets[64 - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1)].increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        long total() {
+            return total.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double p) {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, max());
+                }
+            }
+            return max();
+        }
+    }
+}
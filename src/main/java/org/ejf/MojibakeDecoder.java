@@ -0,0 +1,180 @@
+package org.ejf;
+
+import java.nio.charset.Charset;
+
+/**
+ * Исправление русского текста, однобайтовая кодировка которого была прочитана как Latin-1
+ * (например, {@code Ïðèâåò} вместо {@code Привет}).
+ * <p>
+ * Распознаются два случая, которые встречаются в наших PDF: Windows-1251 и KOI8-R.
+ * Испорченное слово состоит только из символов {@code U+00A0..U+00FF}, которые в этих кодировках
+ * соответствуют русским буквам; слово, в котором такие символы соседствуют с обычными латинскими
+ * буквами ({@code Müller}, {@code café}), считается настоящей латиницей и не трогается.
+ * Кодировка выбирается по тексту целиком - та, в которой испорченные слова больше
+ * похожи на русские (доля самых частых букв); одиночные символы в оценке не участвуют.
+ * Если ни одна не похожа, текст возвращается как есть.
+ * Перекодирование - один проход с заменой по таблице.
+ */
+public final class MojibakeDecoder {
+
+    /**
+     * Кодировка, в которой был записан испорченный текст
+     */
+    public enum Encoding {
+        WINDOWS_1251("windows-1251"),
+        KOI8_R("KOI8-R");
+
+        final char[] table = new char[256];
+        // Байты, которые в этой кодировке означают одну из самых частых букв
+        final boolean[] frequent = new boolean[256];
+
+        Encoding(String charset) {
+            // Только буквы и знак номера, остальные байты не переводим
+            byte[] bytes = new byte[256];
+            for (int b = 0; b < 256; b++) {
+                bytes[b] = (byte) b;
+            }
+            String decoded = new String(bytes, Charset.forName(charset));
+            for (int b = 0xA0; b < 256; b++) {
+                char c = decoded.charAt(b);
+                table[b] = (c >= 'А' && c <= 'я') || c == 'ё' || c == 'Ё' || c == '№' ? c : 0;
+                frequent[b] = FREQUENT.indexOf(Character.toLowerCase(c)) >= 0;
+            }
+        }
+    }
+
+    // Самые частые буквы русского текста - около половины всех букв
+    static final String FREQUENT = "оеаинтсрвл";
+    private static final double MIN_FREQUENT_SHARE = 0.3;
+    // Для выбора кодировки достаточно начала текста
+    private static final int DETECT_LETTERS = 20000;
+    private static final boolean[] SUSPICIOUS = new boolean[256];
+
+    static {
+        for (int c = 0; c < 256; c++) {
+            SUSPICIOUS[c] = Encoding.WINDOWS_1251.table[c] != 0 || Encoding.KOI8_R.table[c] != 0;
+        }
+    }
+
+    private MojibakeDecoder() {
+    }
+
+    /**
+     * Detect the mis-decoded encoding and fix the affected words
+     * @param text Text that may contain mis-decoded Russian words
+     * @return The fixed text, or the same instance if nothing had to be fixed
+     */
+    public static String decode(String text) {
+        if (text == null) {
+            return null;
+        }
+        Encoding encoding = detect(text);
+        return encoding == null ? text : decode(text, encoding);
+    }
+
+    /**
+     * Choose the encoding under which the suspicious words look most like Russian
+     * @param text The text
+     * @return The encoding, or null if the text has no mis-decoded words
+     */
+    public static Encoding detect(CharSequence text) {
+        Encoding[] encodings = Encoding.values();
+        int[] letters = new int[encodings.length];
+        int[] frequent = new int[encodings.length];
+        int length = text.length();
+        int seen = 0;
+        // Все кодировки оцениваются за один проход по тексту, пока не наберётся достаточно букв
+        for (int start = nextRun(text, 0); start < length && seen < DETECT_LETTERS;
+             start = nextRun(text, start)) {
+            int end = runEnd(text, start);
+            // Одиночный символ (à, ×) бывает и в настоящей латинице - кодировку по нему не определяем
+            if (end - start > 1 && isIsolated(text, start, end)) {
+                seen += end - start;
+                for (int e = 0; e < encodings.length; e++) {
+                    if (!isMappable(text, start, end, encodings[e])) {
+                        continue;
+                    }
+                    boolean[] isFrequent = encodings[e].frequent;
+                    for (int i = start; i < end; i++) {
+                        if (isFrequent[text.charAt(i)]) {
+                            frequent[e]++;
+                        }
+                    }
+                    letters[e] += end - start;
+                }
+            }
+            start = end;
+        }
+
+        Encoding best = null;
+        double bestShare = MIN_FREQUENT_SHARE;
+        for (int e = 0; e < encodings.length; e++) {
+            if (letters[e] > 0 && (double) frequent[e] / letters[e] > bestShare) {
+                best = encodings[e];
+                bestShare = (double) frequent[e] / letters[e];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fix the mis-decoded words of a text written in the given encoding
+     * @param text The text
+     * @param encoding Encoding the text was really written in
+     * @return The fixed text
+     */
+    public static String decode(String text, Encoding encoding) {
+        char[] chars = null;
+        int length = text.length();
+        for (int start = nextRun(text, 0); start < length; start = nextRun(text, start)) {
+            int end = runEnd(text, start);
+            if (isIsolated(text, start, end) && isMappable(text, start, end, encoding)) {
+                if (chars == null) {
+                    chars = text.toCharArray();
+                }
+                for (int i = start; i < end; i++) {
+                    chars[i] = encoding.table[chars[i]];
+                }
+            }
+            start = end;
+        }
+        return chars == null ? text : new String(chars);
+    }
+
+    private static boolean isSuspicious(char c) {
+        return c < 256 && SUSPICIOUS[c];
+    }
+
+    private static int nextRun(CharSequence text, int from) {
+        int i = from;
+        while (i < text.length() && !isSuspicious(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int runEnd(CharSequence text, int start) {
+        int i = start;
+        while (i < text.length() && isSuspicious(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Испорченное слово не соприкасается с другими буквами - иначе это латиница с диакритикой
+     */
+    private static boolean isIsolated(CharSequence text, int start, int end) {
+        return (start == 0 || !Character.isLetter(text.charAt(start - 1)))
+                && (end == text.length() || !Character.isLetter(text.charAt(end)));
+    }
+
+    private static boolean isMappable(CharSequence text, int start, int end, Encoding encoding) {
+        for (int i = start; i < end; i++) {
+            if (encoding.table[text.charAt(i)] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,346 @@
+package org.ejf;
+
+import net.sourceforge.tess4j.ITesseract;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Конвейер OCR: поток документа рисует страницы, а отдельный пул потоков их распознаёт,
+ * так что рендеринг следующей страницы идёт одновременно с распознаванием предыдущей.
+ * <p>
+ * Перед рендерингом поток занимает размер будущего изображения в общем для всех документов бюджете
+ * {@code ocr.imageBudgetMB} и ждёт, пока бюджет не освободится; размер возвращается в бюджет
+ * после распознавания. Так нарисованные, но ещё не распознанные страницы всех документов вместе
+ * занимают не больше бюджета, каким бы большим ни был лист карты. Страница больше всего бюджета
+ * занимает его целиком. Бюджет ждут не дольше срока документа и страницы. Если документ прерван
+ * (срок, ошибка), его ещё не начатые распознавания отменяются и возвращают память в бюджет.
+ * Число потоков распознавания задаётся {@code ocr.threads}.
+ * <p>
+ * У страницы-скана ({@link PageClassifier.PageProfile#scan}) страница не рисуется: картинка
+ * декодируется в собственном разрешении и распознаётся один раз. PDFBox декодирует цветной скан
+ * в RGB по 4 байта на пиксель, поэтому на время декодирования занимается размер декодированной картинки,
+ * а после перевода в оттенки серого лишнее возвращается в бюджет. Если декодировать её не удалось
+ * (например, JBIG2 или JPEG 2000 без декодера), страница рисуется как обычно.
+ */
+public class OcrPipeline implements Closeable {
+
+    public static final int DEFAULT_IMAGE_BUDGET_MB = 512;
+
+    private final TesseractPool tesseractPool;
+    private final ExecutorService executor;
+    // Бюджет в килобайтах, чтобы хватило разрешений Semaphore
+    private final Semaphore budget;
+    private final int budgetKb;
+    private final AtomicLong usedKb = new AtomicLong();
+    private final AtomicLong peakKb = new AtomicLong();
+
+    /**
+     * @param tesseractPool Engines for the recognition threads, at least one per thread
+     * @param threads Number of recognition threads
+     * @param budgetBytes Memory for rendered pages waiting for or under recognition
+     */
+    public OcrPipeline(TesseractPool tesseractPool, int threads, long budgetBytes) {
+        this.tesseractPool = tesseractPool;
+        this.budgetKb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / 1024));
+        this.budget = new Semaphore(budgetKb);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ocr");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create the pipeline from system properties, falling back to the defaults
+     * @param defaultThreads Number of recognition threads if {@code ocr.threads} is not set
+     * @return The configured pipeline, must be closed by the caller
+     */
+    public static OcrPipeline fromSystemProperties(int defaultThreads) {
+        int threads = Math.max(1, Integer.getInteger("ocr.threads", defaultThreads));
+        long budgetBytes = Integer.getInteger("ocr.imageBudgetMB", DEFAULT_IMAGE_BUDGET_MB) * 1024L * 1024L;
+        return new OcrPipeline(new TesseractPool(threads), threads, budgetBytes);
+    }
+
+    /**
+     * OCR pages of a document: low DPI first, the high DPI only for pages where it was poor
+     * @param document The opened document; it is rendered only by the calling thread
+     * @param pageIndexes Zero-based indexes of the pages to recognize
+     * @param scans Page index -> the only image of the page, for pages that are bare scans
+     * @param policy Resolutions and quality thresholds
+     * @param deadline Time limits of the document and of every page
+     * @return Results in the order of the pages
+     * @throws TimeoutException If the document or a page is out of time
+     */
+    public List<AdaptiveOcr.PageResult> ocrPages(PDDocument document, List<Integer> pageIndexes,
+                                                 Map<Integer, PDImageXObject> scans, AdaptiveOcr policy,
+                                                 IngestScheduler.Deadline deadline)
+            throws IOException, InterruptedException, TimeoutException {
+        PDFRenderer renderer = new PDFRenderer(document);
+        BlockingQueue<Recognized> done = new LinkedBlockingQueue<>();
+        Map<Integer, AdaptiveOcr.PageResult> lows = new HashMap<>();
+        Set<Integer> direct = new HashSet<>();
+        List<AdaptiveOcr.PageResult> results = new ArrayList<>();
+        List<Future<?>> queued = new ArrayList<>();
+        int next = 0;
+        int pending = 0;
+        boolean finished = false;
+        try {
+            while (next < pageIndexes.size() || pending > 0) {
+                // Пока есть что рисовать, не ждём распознавания - только забираем готовое
+                deadline.check();
+                Recognized recognized = next < pageIndexes.size() ? done.poll() : done.poll(1, TimeUnit.SECONDS);
+                if (recognized == null && next >= pageIndexes.size()) {
+                    // Ждём распознавания, проверяя срок документа
+                    continue;
+                }
+                if (recognized == null) {
+                    int pageIndex = pageIndexes.get(next++);
+                    PDImageXObject scan = scans.get(pageIndex);
+                    long start = System.nanoTime();
+                    if (scan != null && submitScan(document, scan, pageIndex, deadline, queued, done)) {
+                        direct.add(pageIndex);
+                    } else {
+                        submit(document, renderer, pageIndex, policy.getLowDpi(), deadline, queued, done);
+                    }
+                    deadline.checkPage(pageIndex, System.nanoTime() - start);
+                    pending++;
+                    continue;
+                }
+                pending--;
+                AdaptiveOcr.PageResult result = recognized.get();
+                deadline.checkPage(result.pageIndex, recognized.nanos);
+                // Картинка скана распознаётся в собственном разрешении, перерисовка ничего не добавит
+                if (!direct.contains(result.pageIndex) && result.dpi == policy.getLowDpi()
+                        && policy.needsHighDpi(result)) {
+                    lows.put(result.pageIndex, result);
+                    long start = System.nanoTime();
+                    submit(document, renderer, result.pageIndex, policy.getHighDpi(), deadline, queued, done);
+                    deadline.checkPage(result.pageIndex, System.nanoTime() - start);
+                    pending++;
+                } else {
+                    AdaptiveOcr.PageResult low = lows.remove(result.pageIndex);
+                    results.add(low == null ? result : AdaptiveOcr.better(low, result));
+                }
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                // Документ прерван - его страницы в очереди распознавать незачем
+                queued.forEach(future -> future.cancel(false));
+            }
+        }
+        results.sort(Comparator.comparingInt(result -> result.pageIndex));
+        return results;
+    }
+
+    /**
+     * @return The most memory rendered pages have taken at once
+     */
+    public long getPeakImageBytes() {
+        return peakKb.get() * 1024;
+    }
+
+    public String getStats() {
+        return "OCR images: peak " + peakKb.get() / 1024 + " MB of " + budgetKb / 1024 + " MB budget";
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Render a page within the budget and queue it for recognition
+     */
+    private void submit(PDDocument document, PDFRenderer renderer, int pageIndex, int dpi,
+                        IngestScheduler.Deadline deadline, List<Future<?>> queued,
+                        BlockingQueue<Recognized> done) throws IOException, InterruptedException, TimeoutException {
+        PDRectangle box = document.getPage(pageIndex).getCropBox();
+        int kb = imageKb((long) Math.ceil(box.getWidth() / 72 * dpi), (long) Math.ceil(box.getHeight() / 72 * dpi), 1);
+        acquire(kb, deadline, pageIndex);
+        BufferedImage image;
+        try {
+            image = AdaptiveOcr.render(renderer, pageIndex, dpi);
+        } catch (IOException | RuntimeException e) {
+            release(kb);
+            throw e;
+        }
+        queued.add(recognize(image, pageIndex, dpi, kb, done));
+    }
+
+    /**
+     * Decode the image of a scanned page within the budget and queue it for recognition
+     * @return False if the image can't be decoded and the page has to be rendered
+     */
+    private boolean submitScan(PDDocument document, PDImageXObject scan, int pageIndex,
+                               IngestScheduler.Deadline deadline, List<Future<?>> queued,
+                               BlockingQueue<Recognized> done) throws InterruptedException, TimeoutException {
+        int kb = imageKb(scan.getWidth(), scan.getHeight(), 1);
+        int decodedKb = Math.max(kb, imageKb(scan.getWidth(), scan.getHeight(), decodedBytesPerPixel(scan)));
+        acquire(decodedKb, deadline, pageIndex);
+        BufferedImage image;
+        try {
+            long start = Metrics.start();
+            image = toGray(scan.getImage());
+            Metrics.record(Metrics.Stage.IMAGE_DECODE, start);
+            // Декодированная картинка больше не нужна, остаётся только серая
+            release(decodedKb - kb);
+        } catch (IOException | RuntimeException e) {
+            release(decodedKb);
+            System.out.println("Page " + (pageIndex + 1) + ": can't decode the scan (" + e.getMessage()
+                    + "), rendering the page");
+            return false;
+        }
+        // Разрешение скана - для статистики, как у нарисованных страниц
+        float pageWidth = document.getPage(pageIndex).getCropBox().getWidth();
+        int dpi = pageWidth > 0 ? Math.round(image.getWidth() * 72 / pageWidth) : 0;
+        Metrics.increment("pagesScanOcr");
+        queued.add(recognize(image, pageIndex, dpi, kb, done));
+        return true;
+    }
+
+    /**
+     * @return The queued recognition; cancelling it before it starts returns its memory to the budget
+     */
+    private Future<?> recognize(BufferedImage image, int pageIndex, int dpi, int kb, BlockingQueue<Recognized> done) {
+        AtomicBoolean started = new AtomicBoolean();
+        FutureTask<Void> task = new FutureTask<Void>(() -> {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            ITesseract tesseract = null;
+            long start = System.nanoTime();
+            try {
+                tesseract = tesseractPool.borrow();
+                AdaptiveOcr.PageResult result = AdaptiveOcr.recognize(image, pageIndex, dpi, tesseract);
+                done.add(new Recognized(result, null, System.nanoTime() - start));
+            } catch (Throwable e) {
+                // Ошибку отдаём потоку документа, иначе он будет ждать страницу вечно
+                done.add(new Recognized(null, e, System.nanoTime() - start));
+            } finally {
+                if (tesseract != null) {
+                    tesseractPool.release(tesseract);
+                }
+                release(kb);
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                if (isCancelled() && started.compareAndSet(false, true)) {
+                    release(kb);
+                }
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Take memory from the budget, waiting no longer than the document and the page have left
+     * @throws TimeoutException If the memory isn't freed in time
+     */
+    private void acquire(int kb, IngestScheduler.Deadline deadline, int pageIndex)
+            throws InterruptedException, TimeoutException {
+        if (!budget.tryAcquire(kb)) {
+            Metrics.increment("ocrBudgetWaits");
+            if (!budget.tryAcquire(kb, deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+                deadline.check();
+                throw new TimeoutException("page " + (pageIndex + 1) + " time limit exceeded waiting for OCR memory");
+            }
+        }
+        peakKb.accumulateAndGet(usedKb.addAndGet(kb), Math::max);
+    }
+
+    private void release(int kb) {
+        usedKb.addAndGet(-kb);
+        budget.release(kb);
+    }
+
+    /**
+     * @return Size of an image in kilobytes, at most the whole budget
+     */
+    private int imageKb(long width, long height, int bytesPerPixel) {
+        return (int) Math.max(1, Math.min(budgetKb, width * height * bytesPerPixel / 1024));
+    }
+
+    /**
+     * Memory PDFBox takes per pixel to decode the image: the raw samples plus the RGB image made of them;
+     * only 1-bit gray images (CCITT, JBIG2) are decoded straight to grayscale
+     */
+    static int decodedBytesPerPixel(PDImageXObject image) {
+        int bits = image.getBitsPerComponent();
+        PDColorSpace colorSpace;
+        try {
+            colorSpace = image.getColorSpace();
+        } catch (IOException e) {
+            colorSpace = null;
+        }
+        if (bits == 1 && colorSpace instanceof PDDeviceGray) {
+            return 1;
+        }
+        int components = colorSpace == null ? 4 : colorSpace.getNumberOfComponents();
+        return components * (bits > 8 ? 2 : 1) + 4;
+    }
+
+    /**
+     * Convert a decoded image to grayscale, painting transparent areas white as the renderer does
+     */
+    static BufferedImage toGray(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            return image;
+        }
+        BufferedImage gray = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = gray.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, gray.getWidth(), gray.getHeight());
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return gray;
+    }
+
+    /**
+     * Результат распознавания страницы или ошибка, возникшая в потоке OCR
+     */
+    private static class Recognized {
+        final AdaptiveOcr.PageResult result;
+        final Throwable error;
+        // Время распознавания вместе с ожиданием свободного движка
+        final long nanos;
+
+        Recognized(AdaptiveOcr.PageResult result, Throwable error, long nanos) {
+            this.result = result;
+            this.error = error;
+            this.nanos = nanos;
+        }
+
+        AdaptiveOcr.PageResult get() throws IOException {
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error != null) {
+                throw new IOException("OCR failed: " + error.getMessage(), error);
+            }
+            return result;
+        }
+    }
+}
@@ -1,149 +1,202 @@
 package org.ejf;
 
-import net.sourceforge.tess4j.*;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.text.PDFTextStripper;
 
-import java.awt.image.BufferedImage;
-import java.io.*;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.file.*;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 public class PDFSearcherWithOCR {
 
     public static final String O_MAPS_DOCS_TEXTS_FILE = "o-maps-docs-texts.json";
+    public static final String O_MAPS_DOCS_STORE_DIR = "o-maps-docs-store";
+    public static final String O_MAPS_DOCS_INDEX_FILE = "o-maps-docs-index.bin";
+    public static final String O_MAPS_DOCS_WORDS_FILE = "o-maps-docs-words.bin";
+    public static final String O_MAPS_DOCS_MANIFEST_FILE = "o-maps-docs-manifest.tsv";
+    public static final String O_MAPS_DOCS_NORMALIZER_FILE = "o-maps-docs-normalizer.txt";
+    public static final String O_MAPS_DOCS_QUARANTINE_FILE = "o-maps-docs-quarantine.tsv";
 
     private static final String TIME_PATTERN = "HH:mm:ss dd.MM.yyyy";
     private static final DateTimeFormatter TIME_FORMATTER =
             DateTimeFormatter.ofPattern(TIME_PATTERN).withZone(ZoneId.systemDefault());
 
-    private static final ITesseract tesseract = new Tesseract();
     public static final String TEXT_KEY = "text";
     public static final String OCR_KEY = "ocr";
-
-    static {
-        // Настройка Tesseract для русского языка
-        tesseract.setDatapath("tessdata"); // путь к tessdata
-        tesseract.setLanguage("rus+eng");
-        tesseract.setPageSegMode(ITessAPI.TessPageSegMode.PSM_AUTO);
+    public static final String OCR_PAGES_KEY = "ocrPages";
+    // Начала страниц в тексте и текст страниц для показа фрагментов, см. PageLocator
+    public static final String TEXT_OFFSETS_KEY = "textOffsets";
+    public static final String TEXT_DISPLAY_KEY = "textDisplay";
+    public static final String OCR_OFFSETS_KEY = "ocrOffsets";
+    public static final String OCR_DISPLAY_KEY = "ocrDisplay";
+    // Правила нормализации, по которым получены поисковые тексты
+    public static final String NORM_KEY = "norm";
+    // Отпечаток файла, из которого извлечены тексты - по нему продолжается прерванный запуск
+    public static final String SIZE_KEY = "size";
+    public static final String MTIME_KEY = "mtime";
+    public static final String HASH_KEY = "hash";
+
+    private static final AdaptiveOcr OCR_POLICY = AdaptiveOcr.fromSystemProperties();
+
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    // Поиск с опечатками, как их делает OCR (см. DocsCatalog.findFuzzyHits)
+    private static final boolean FUZZY = Boolean.getBoolean("search.fuzzy");
+
+    public static List<SearchHit> process(String folderPath, String searchText) throws Exception {
+        return process(folderPath, searchText, DEFAULT_WORKERS);
     }
 
-    public static List<String> process(String folderPath, String searchText) throws Exception {
+    public static List<SearchHit> process(String folderPath, String searchText, int workers) throws Exception {
 
         Instant start = Instant.now();
-
-        List<Path> pdfFiles = Files.walk(Paths.get(folderPath))
-                .filter(Files::isRegularFile)
-                .filter(p -> p.toString().toLowerCase().endsWith(".pdf"))
-                .collect(Collectors.toList());
-
-        int kPDFs = pdfFiles.size();
-        System.out.println("Found " + kPDFs + " PDF files in the directory.");
-        System.out.println("Searching '" + searchText + "' is started at " + TIME_FORMATTER.format(start));
-
-        List<String> results = new ArrayList<>();
-        boolean needRewriteTextsFile = false;
-        Map<String, Map<String, String>> storedTexts = Util.loadNestedMapFromFile(O_MAPS_DOCS_TEXTS_FILE);
-
-        int counter = 1;
-        for (Path pdfPath : pdfFiles) {
-            Path fileName = pdfPath.getFileName();
-            String pdfPathString = pdfPath.toString().substring(29);
-            String fileNameString = fileName.toString();
-            System.out.println("Processing " + fileName + " (" + counter++ + " of " + kPDFs + ")");
-
-            Map<String, String> storedDocTexts = storedTexts.get(fileNameString);
-            if (storedDocTexts != null) {
-                if (storedDocTexts.get(TEXT_KEY).contains(searchText) || storedDocTexts.get(OCR_KEY).contains(searchText)) {
-                    results.add(pdfPathString);
-                }
-            } else {
-                needRewriteTextsFile = true;
-                storedDocTexts = new HashMap<>();
-                try {
-                    // Сначала пробуем обычное извлечение текста
-                    String text = extractText(pdfPath);
-                    String ocrText = searchTextWithOCR(pdfPath);
-                    storedDocTexts.put(TEXT_KEY, text);
-                    storedDocTexts.put(OCR_KEY, ocrText);
-                    storedTexts.put(fileNameString, storedDocTexts);
-
-                    if (text.toLowerCase().contains(searchText)) {
-                        results.add(pdfPathString);
-                        System.out.println("Found (text) in " + fileName);
-                    } else {
-                        // Если обычный текст не нашел, пробуем OCR
-                        if (ocrText.toLowerCase().contains(searchText)) {
-                            results.add(pdfPathString);
-                            System.out.println("Found (OCR) in " + fileName);
-                        } else {
-                            System.out.println("Not found in " + fileName);
-                        }
-                    }
-                } catch (Exception e) {
-                    System.out.println("ERROR: " + e.getMessage());
-                }
-            }
-
-        };
-
-        if (needRewriteTextsFile) {
-            Util.saveNestedMapToFile(storedTexts, O_MAPS_DOCS_TEXTS_FILE);
+        System.out.println("Searching '" + searchText + "' is started at " + TIME_FORMATTER.format(start)
+                + " (" + workers + " workers)");
+
+        Metrics.startReporting();
+        List<SearchHit> results;
+        try (DocsCatalog catalog = DocsCatalog.open(folderPath)) {
+            // Сначала дообрабатываем новые и изменённые файлы, затем ищем по индексу
+            catalog.ingest(workers);
+            results = FUZZY ? catalog.findFuzzyHits(searchText)
+                    : BooleanQuery.isBooleanQuery(searchText) ? catalog.findQueryHits(searchText)
+                    : catalog.findHits(searchText);
         }
 
         System.out.println("\n=== RESULTS ===");
-        System.out.println("Found in " + results.size() + " files:");
+        System.out.println("Found on " + results.size() + " pages in "
+                + results.stream().map(hit -> hit.path).distinct().count() + " files:");
         //results.forEach(System.out::println);
 
         Instant finish = Instant.now();
         String elapsed = Util.getFormattedCurrentProgressTime(start, finish);
         System.out.println("It's finished in " + elapsed);
+        System.out.println(Metrics.summary());
+        Metrics.writeFile();
 
         return results;
     }
 
-    private static String extractText(Path pdfPath) throws IOException {
-        try (PDDocument document = PDDocument.load(pdfPath.toFile())) {
-            if (document.isEncrypted()) {
-                return "";
-            }
+    /**
+     * Извлечь текстовый слой и OCR одного файла. Файл читается и разбирается один раз.
+     * @param pdfPath The PDF file
+     * @param ocrPipeline Pipeline recognizing the rendered pages
+     * @param deadline Time limits checked between pages
+     * @return The document's fields for the text store
+     */
+    static Map<String, String> extractDocument(Path pdfPath, OcrPipeline ocrPipeline,
+                                               IngestScheduler.Deadline deadline) throws Exception {
+        try (PdfContext context = PdfContext.open(pdfPath)) {
+            // Сначала пробуем обычное извлечение текста, страницы сразу очищаются и складываются в поля
+            PageLocator.Collector textPages = new PageLocator.Collector();
+            extractPages(context, deadline, textPages);
+            List<AdaptiveOcr.PageResult> ocrPages = searchTextWithOCR(context, ocrPipeline, deadline);
+
+            Map<String, String> storedDocTexts = new HashMap<>();
+            textPages.putInto(storedDocTexts, TEXT_KEY, TEXT_OFFSETS_KEY, TEXT_DISPLAY_KEY);
+            PageLocator.store(storedDocTexts, OCR_KEY, OCR_OFFSETS_KEY, OCR_DISPLAY_KEY,
+                    ocrPages.stream().map(page -> page.pageIndex + 1).collect(Collectors.toList()),
+                    ocrPages.stream().map(page -> page.text).collect(Collectors.toList()));
+            storedDocTexts.put(NORM_KEY, TextNormalizer.DEFAULT.getRules());
+            // Выбранное разрешение и уверенность по страницам - для настройки порогов
+            storedDocTexts.put(OCR_PAGES_KEY, ocrPages.stream()
+                    .map(AdaptiveOcr.PageResult::toStatsString).collect(Collectors.joining(";")));
+            context.sampleHeap();
+            System.out.println(pdfPath.getFileName() + ": " + context.getStats());
+            return storedDocTexts;
+        }
+    }
 
-            PDFTextStripper stripper = new PDFTextStripper();
-            return Util.cleanText(stripper.getText(document));
+    static String extractText(PdfContext context) throws IOException {
+        return Util.cleanText(String.join("", extractPages(context)));
+    }
+
+    /**
+     * @param context The opened document
+     * @return Raw text of every page, empty for an encrypted document
+     */
+    static List<String> extractPages(PdfContext context) throws IOException {
+        List<String> pages = new ArrayList<>();
+        try {
+            extractPages(context, IngestScheduler.Deadline.NONE, (pageNumber, rawText) -> pages.add(rawText));
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Unlimited extraction timed out", e);
         }
+        return pages;
     }
 
-    private static String searchTextWithOCR(Path pdfPath) throws Exception {
-        try (PDDocument document = PDDocument.load(pdfPath.toFile())) {
-            if (document.isEncrypted()) {
-                System.out.println(pdfPath.getFileName() + " is encrypted, so it can't be OCRed");
-                return "";
-            }
+    /**
+     * Извлечь текстовый слой постранично, отдавая каждую страницу получателю сразу после извлечения
+     * @param context The opened document
+     * @param deadline Time limits checked after every page
+     * @param sink Receiver of the raw text of every page; gets nothing for an encrypted document
+     */
+    static void extractPages(PdfContext context, IngestScheduler.Deadline deadline, PageLocator.PageSink sink)
+            throws IOException, TimeoutException {
+        PDDocument document = context.getPDDocument();
+        if (document.isEncrypted()) {
+            return;
+        }
 
-            PDFRenderer renderer = new PDFRenderer(document);
-            StringBuilder textBuilder = new StringBuilder();
+        long start = Metrics.start();
+        PDFTextStripper stripper = new PDFTextStripper();
+        // Один буфер на все страницы вместо нового на каждую
+        StringWriter page = new StringWriter();
+        for (int i = 1; i <= document.getNumberOfPages(); i++) {
+            long pageStart = System.nanoTime();
+            stripper.setStartPage(i);
+            stripper.setEndPage(i);
+            page.getBuffer().setLength(0);
+            stripper.writeText(document, page);
+            sink.page(i, page.toString());
+            context.sampleHeap();
+            deadline.checkPage(i - 1, System.nanoTime() - pageStart);
+        }
+        Metrics.record(Metrics.Stage.TEXT_EXTRACTION, start);
+    }
 
-            // Конвертируем каждую страницу в изображение и распознаем
-            for (int i = 0; i < document.getNumberOfPages(); i++) {
-                BufferedImage image = renderer.renderImageWithDPI(i, 150);
-                String pageText = tesseract.doOCR(image);
-                textBuilder.append(pageText);
-            }
+    private static List<AdaptiveOcr.PageResult> searchTextWithOCR(PdfContext context, OcrPipeline ocrPipeline,
+                                                                  IngestScheduler.Deadline deadline)
+            throws Exception {
+        PDDocument document = context.getPDDocument();
+        Path pdfPath = context.getPath();
+        if (document.isEncrypted()) {
+            System.out.println(pdfPath.getFileName() + " is encrypted, so it can't be OCRed");
+            return Collections.emptyList();
+        }
 
-            // На всякий случай, и в более высоком разрешении
-            for (int i = 0; i < document.getNumberOfPages(); i++) {
-                BufferedImage image = renderer.renderImageWithDPI(i, 300); // 300 DPI для качественного OCR
-                String pageText = tesseract.doOCR(image);
-                textBuilder.append(pageText);
+        PageClassifier classifier = PageClassifier.fromSystemProperties();
+        List<Integer> pageIndexes = new ArrayList<>();
+        Map<Integer, PDImageXObject> scans = new HashMap<>();
+
+        // Конвертируем в изображение и распознаем только страницы без пригодного текстового слоя,
+        // в высоком разрешении - только если низкое не дало уверенного результата
+        int kPages = document.getNumberOfPages();
+        for (int i = 0; i < kPages; i++) {
+            deadline.check();
+            PageClassifier.PageProfile profile = classifier.classify(document.getPage(i));
+            context.sampleHeap();
+            if (profile.needsOcr) {
+                pageIndexes.add(i);
+                // Страницу-скан распознаём по самой картинке, без рендеринга
+                if (profile.scan != null) {
+                    scans.put(i, profile.scan);
+                }
             }
-
-            return Util.cleanText(textBuilder.toString());
         }
+        List<AdaptiveOcr.PageResult> pages = ocrPipeline.ocrPages(document, pageIndexes, scans, OCR_POLICY, deadline);
+        context.sampleHeap();
+        System.out.println(pdfPath.getFileName() + ": OCR of " + pages.size() + " of " + kPages + " pages");
+        Metrics.add("pagesOcr", pages.size());
+        Metrics.add("pagesSkipped", kPages - pages.size());
+
+        return pages;
     }
 
 }
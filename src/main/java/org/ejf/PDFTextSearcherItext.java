@@ -89,25 +89,23 @@ public class PDFTextSearcherItext {
                 return false;
             }
 
-            StringBuilder textBuilder = new StringBuilder();
-            SimpleTextExtractionStrategy strategy = new SimpleTextExtractionStrategy();
+            StreamingMatcher matcher = new StreamingMatcher(searchString);
 
             for (int i = 1; i <= pdfDoc.getNumberOfPages(); i++) {
                 PdfPage page = pdfDoc.getPage(i);
+                // Стратегия накапливает текст, поэтому для каждой страницы нужна новая
+                SimpleTextExtractionStrategy strategy = new SimpleTextExtractionStrategy();
                 String pageText = PdfTextExtractor.getTextFromPage(page, strategy);
-                textBuilder.append(pageText);
 
-                // Оптимизация: проверяем по мере извлечения
-                if (textBuilder.toString().toLowerCase().contains(searchString.toLowerCase())) {
+                // Оптимизация: проверяем по мере извлечения, не накапливая текст
+                if (matcher.feed(pageText)) {
                     System.out.println("найдено!");
                     return true;
                 }
             }
 
-            String fullText = textBuilder.toString();
-            boolean found = fullText.toLowerCase().contains(searchString.toLowerCase());
-            System.out.println(found ? "найдено!" : "не найдено");
-            return found;
+            System.out.println("не найдено");
+            return false;
         } catch (Exception e) {
             System.out.println("ошибка: " + e.getMessage());
             throw e;
@@ -0,0 +1,203 @@
+package org.ejf;
+
+import org.apache.pdfbox.contentstream.PDFStreamEngine;
+import org.apache.pdfbox.contentstream.operator.DrawObject;
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.contentstream.operator.state.*;
+import org.apache.pdfbox.contentstream.operator.text.*;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.util.Matrix;
+import org.apache.pdfbox.util.Vector;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Классификатор страниц: решает, есть ли у страницы пригодный текстовый слой
+ * или её нужно отдавать в OCR. За один проход по content stream считает
+ * глифы с юникодом, использованные шрифты и долю площади страницы под картинками.
+ * <p>
+ * Заодно распознаётся скан: страница, на которой нарисована ровно одна картинка, без текста
+ * и векторной графики, не повёрнутая и закрывающая почти всю страницу. Такую картинку можно
+ * отдать в OCR как есть, в её собственном разрешении, не рисуя страницу заново.
+ * <p>
+ * Пороги можно переопределить системными свойствами
+ * {@code ocr.minGlyphs}, {@code ocr.imageCoverage}, {@code ocr.imagePageMaxGlyphs},
+ * {@code ocr.scanCoverage} (0 - не распознавать сканы).
+ */
+public class PageClassifier extends PDFStreamEngine {
+
+    public static final int DEFAULT_MIN_GLYPHS = 50;
+    public static final int DEFAULT_IMAGE_COVERAGE_PERCENT = 50;
+    public static final int DEFAULT_IMAGE_PAGE_MAX_GLYPHS = 500;
+    public static final int DEFAULT_SCAN_COVERAGE_PERCENT = 90;
+    // Операторы, которые закрашивают контур: страница с ними - не чистый скан
+    private static final Set<String> PAINT_OPERATORS = new HashSet<>(
+            Arrays.asList("S", "s", "f", "F", "f*", "B", "B*", "b", "b*", "sh"));
+
+    private final int minGlyphs;
+    private final double imageCoverageThreshold;
+    private final int imagePageMaxGlyphs;
+    private final double scanCoverageThreshold;
+
+    private int glyphs;
+    private final Set<PDFont> fonts = new HashSet<>();
+    private double imageArea;
+    private int images;
+    private PDImageXObject lastImage;
+    private Matrix lastImageMatrix;
+    private boolean paints;
+
+    public PageClassifier(int minGlyphs, int imageCoveragePercent, int imagePageMaxGlyphs, int scanCoveragePercent) {
+        this.minGlyphs = minGlyphs;
+        this.imageCoverageThreshold = imageCoveragePercent / 100.0;
+        this.imagePageMaxGlyphs = imagePageMaxGlyphs;
+        this.scanCoverageThreshold = scanCoveragePercent <= 0 ? Double.MAX_VALUE : scanCoveragePercent / 100.0;
+
+        addOperator(new Concatenate());
+        addOperator(new SetMatrix());
+        addOperator(new Save());
+        addOperator(new Restore());
+        addOperator(new SetGraphicsStateParameters());
+        addOperator(new DrawObject());
+        addOperator(new BeginText());
+        addOperator(new EndText());
+        addOperator(new SetFontAndSize());
+        addOperator(new SetCharSpacing());
+        addOperator(new SetWordSpacing());
+        addOperator(new SetTextHorizontalScaling());
+        addOperator(new SetTextLeading());
+        addOperator(new SetTextRenderingMode());
+        addOperator(new SetTextRise());
+        addOperator(new MoveText());
+        addOperator(new MoveTextSetLeading());
+        addOperator(new NextLine());
+        addOperator(new ShowText());
+        addOperator(new ShowTextAdjusted());
+        addOperator(new ShowTextLine());
+        addOperator(new ShowTextLineAndSpace());
+    }
+
+    /**
+     * Create the classifier from system properties, falling back to the defaults
+     * @return The configured classifier
+     */
+    public static PageClassifier fromSystemProperties() {
+        return new PageClassifier(
+                Integer.getInteger("ocr.minGlyphs", DEFAULT_MIN_GLYPHS),
+                Integer.getInteger("ocr.imageCoverage", DEFAULT_IMAGE_COVERAGE_PERCENT),
+                Integer.getInteger("ocr.imagePageMaxGlyphs", DEFAULT_IMAGE_PAGE_MAX_GLYPHS),
+                Integer.getInteger("ocr.scanCoverage", DEFAULT_SCAN_COVERAGE_PERCENT));
+    }
+
+    /**
+     * Analyse a page and decide whether its text layer is good enough to skip OCR.
+     * The classifier keeps state between calls, so one instance must not be shared between threads.
+     * @param page The page to analyse
+     * @return Glyph count, font count, image coverage, the decision and the scanned image if the page is a bare scan
+     */
+    public PageProfile classify(PDPage page) throws IOException {
+        glyphs = 0;
+        fonts.clear();
+        imageArea = 0;
+        images = 0;
+        lastImage = null;
+        lastImageMatrix = null;
+        paints = false;
+
+        processPage(page);
+
+        PDRectangle box = page.getCropBox();
+        double pageArea = box.getWidth() * box.getHeight();
+        double coverage = pageArea <= 0 ? 0 : Math.min(1.0, imageArea / pageArea);
+
+        boolean needsOcr = glyphs < minGlyphs
+                || fonts.isEmpty()
+                || (coverage >= imageCoverageThreshold && glyphs < imagePageMaxGlyphs);
+        PDImageXObject scan = needsOcr && isScan(page, coverage) ? lastImage : null;
+        return new PageProfile(glyphs, fonts.size(), coverage, needsOcr, scan);
+    }
+
+    private boolean isScan(PDPage page, double coverage) {
+        if (images != 1 || lastImage == null || glyphs > 0 || paints || lastImage.isStencil()
+                || coverage < scanCoverageThreshold || page.getRotation() % 360 != 0) {
+            return false;
+        }
+        // Картинка должна стоять прямо: без поворота, наклона и отражения
+        Matrix m = lastImageMatrix;
+        return m.getValue(0, 1) == 0 && m.getValue(1, 0) == 0 && m.getValue(0, 0) > 0 && m.getValue(1, 1) > 0;
+    }
+
+    @Override
+    protected void processOperator(Operator operator, List<COSBase> operands) throws IOException {
+        String name = operator.getName();
+        if ("BI".equals(name)) {
+            // Встроенную картинку отдельно не достать - такая страница рисуется целиком
+            addImageArea();
+            images++;
+            lastImage = null;
+        } else if (PAINT_OPERATORS.contains(name)) {
+            paints = true;
+        } else if ("Do".equals(name) && !operands.isEmpty() && operands.get(0) instanceof COSName) {
+            PDResources resources = getResources();
+            PDXObject xObject = resources == null ? null : resources.getXObject((COSName) operands.get(0));
+            if (xObject instanceof PDImageXObject) {
+                addImageArea();
+                images++;
+                lastImage = (PDImageXObject) xObject;
+                lastImageMatrix = getGraphicsState().getCurrentTransformationMatrix().clone();
+                return;
+            }
+        }
+        super.processOperator(operator, operands);
+    }
+
+    @Override
+    protected void showGlyph(Matrix textRenderingMatrix, PDFont font, int code, Vector displacement)
+            throws IOException {
+        if (font == null) {
+            return;
+        }
+        fonts.add(font);
+        String unicode = font.toUnicode(code);
+        if (unicode != null && !unicode.trim().isEmpty()) {
+            glyphs++;
+        }
+    }
+
+    private void addImageArea() {
+        // Картинка рисуется в единичный квадрат, растянутый текущей матрицей преобразования
+        Matrix ctm = getGraphicsState().getCurrentTransformationMatrix();
+        imageArea += Math.abs(ctm.getScalingFactorX() * ctm.getScalingFactorY());
+    }
+
+    /**
+     * Характеристики страницы, по которым принято решение об OCR
+     */
+    public static class PageProfile {
+        public final int glyphs;
+        public final int fonts;
+        public final double imageCoverage;
+        public final boolean needsOcr;
+        // Единственная картинка страницы-скана, иначе null
+        public final PDImageXObject scan;
+
+        PageProfile(int glyphs, int fonts, double imageCoverage, boolean needsOcr, PDImageXObject scan) {
+            this.glyphs = glyphs;
+            this.fonts = fonts;
+            this.imageCoverage = imageCoverage;
+            this.needsOcr = needsOcr;
+            this.scan = scan;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.ejf;
+
+import java.util.*;
+
+/**
+ * Постраничные смещения в тексте документа.
+ * <p>
+ * Вместе с очищенным для поиска текстом хранятся начала страниц в нём ({@code страница:смещение,...})
+ * и слегка нормализованный текст страниц для показа, разделённых символом {@code \f}.
+ * По смещению совпадения находится страница, а фрагмент для показа вырезается из текста этой страницы -
+ * без повторного разбора PDF.
+ */
+final class PageLocator {
+
+    static final char PAGE_SEPARATOR = '\f';
+    public static final int DEFAULT_SNIPPET_CHARS = 60;
+    private static final int SNIPPET_CHARS = Integer.getInteger("search.snippetChars", DEFAULT_SNIPPET_CHARS);
+
+    private PageLocator() {
+    }
+
+    /**
+     * Put the searchable text, page offsets and display text of the pages into the document's fields
+     * @param fields The document's fields
+     * @param textKey Field for the searchable text
+     * @param offsetsKey Field for the page offsets
+     * @param displayKey Field for the display text
+     * @param pageNumbers One-based numbers of the pages
+     * @param pages Raw text of the pages
+     */
+    static void store(Map<String, String> fields, String textKey, String offsetsKey, String displayKey,
+                      List<Integer> pageNumbers, List<String> pages) {
+        Collector collector = new Collector();
+        for (int i = 0; i < pages.size(); i++) {
+            collector.page(pageNumbers.get(i), pages.get(i));
+        }
+        collector.putInto(fields, textKey, offsetsKey, displayKey);
+    }
+
+    /**
+     * Получатель текста страниц по мере их извлечения
+     */
+    interface PageSink {
+        /**
+         * @param pageNumber One-based number of the page
+         * @param rawText Raw text of the page
+         */
+        void page(int pageNumber, String rawText);
+    }
+
+    /**
+     * Поля документа, собираемые постранично: сырой текст страницы сразу очищается и нормализуется
+     * для показа и дальше не хранится, так что текст документа целиком в сыром виде не собирается.
+     */
+    static final class Collector implements PageSink {
+        private final StringBuilder text = new StringBuilder();
+        private final StringBuilder offsets = new StringBuilder();
+        private final StringBuilder display = new StringBuilder();
+        private int pages;
+
+        @Override
+        public void page(int pageNumber, String rawText) {
+            if (pages++ > 0) {
+                offsets.append(',');
+                display.append(PAGE_SEPARATOR);
+            }
+            String pageText = Util.cleanText(rawText);
+            // Страницы разделяются пробелом, чтобы слова на их стыке не склеивались
+            if (text.length() > 0 && !pageText.isEmpty() && TextNormalizer.DEFAULT.keepsSpaces()) {
+                text.append(' ');
+            }
+            offsets.append(pageNumber).append(':').append(text.length());
+            text.append(pageText);
+            // Пробелы нормализуются вместе с разделителем страниц, поэтому он не встретится внутри страницы
+            display.append(Util.normalizeSpaces(rawText));
+        }
+
+        /**
+         * Put the collected searchable text, page offsets and display text into the document's fields
+         */
+        void putInto(Map<String, String> fields, String textKey, String offsetsKey, String displayKey) {
+            fields.put(textKey, text.toString());
+            fields.put(offsetsKey, offsets.toString());
+            fields.put(displayKey, display.toString());
+        }
+    }
+
+    /**
+     * Recompute the searchable text and page offsets from the stored display text, e.g. after the normalization rules change
+     * @param fields The document's fields
+     * @param textKey Field for the searchable text
+     * @param offsetsKey Field with the page offsets
+     * @param displayKey Field with the display text
+     * @return Whether the document has the display text to recompute from
+     */
+    static boolean restore(Map<String, String> fields, String textKey, String offsetsKey, String displayKey) {
+        String offsets = fields.get(offsetsKey);
+        String display = fields.get(displayKey);
+        if (offsets == null || display == null) {
+            return false;
+        }
+        List<Integer> numbers = new ArrayList<>();
+        List<String> pages = new ArrayList<>();
+        if (!offsets.isEmpty()) {
+            for (String entry : offsets.split(",")) {
+                numbers.add(Integer.parseInt(entry.substring(0, entry.indexOf(':'))));
+            }
+            pages.addAll(Arrays.asList(display.split(String.valueOf(PAGE_SEPARATOR), -1)));
+        }
+        if (numbers.size() != pages.size()) {
+            return false;
+        }
+        store(fields, textKey, offsetsKey, displayKey, numbers, pages);
+        return true;
+    }
+
+    /**
+     * Find the pages where the query occurs and cut a snippet around the first match on each
+     * @param fields The document's fields
+     * @param textKey Field with the searchable text
+     * @param offsetsKey Field with the page offsets
+     * @param displayKey Field with the display text
+     * @param query Search text in the searchable form
+     * @param path Result path of the document
+     * @param hits Page number -> hit; pages already present are skipped
+     * @param maxHits Stop when this many pages are found
+     */
+    static void locate(Map<String, String> fields, String textKey, String offsetsKey, String displayKey,
+                       String query, String path, Map<Integer, SearchHit> hits, int maxHits) {
+        if (query.isEmpty()) {
+            return;
+        }
+        locate(fields, textKey, offsetsKey, displayKey, (text, from) -> {
+            int match = text.indexOf(query, from);
+            return match < 0 ? -1 : match + query.length();
+        }, query.length(), path, hits, maxHits);
+    }
+
+    /**
+     * Find the pages where the term occurs with at most the matcher's number of edits
+     * and cut a snippet around the first match on each
+     * @param fields The document's fields
+     * @param textKey Field with the searchable text
+     * @param offsetsKey Field with the page offsets
+     * @param displayKey Field with the display text
+     * @param matcher Matcher of the term
+     * @param path Result path of the document
+     * @param hits Page number -> hit; pages already present are skipped
+     * @param maxHits Stop when this many pages are found
+     */
+    static void locate(Map<String, String> fields, String textKey, String offsetsKey, String displayKey,
+                       FuzzyMatcher matcher, String path, Map<Integer, SearchHit> hits, int maxHits) {
+        locate(fields, textKey, offsetsKey, displayKey, matcher::find, matcher.getPattern().length(),
+                path, hits, maxHits);
+    }
+
+    /**
+     * @param finder Returns the end of the first match at or after the offset, or -1
+     * @param length Length of the match; for a fuzzy match its start is approximated by the end minus the length
+     */
+    private static void locate(Map<String, String> fields, String textKey, String offsetsKey, String displayKey,
+                               MatchFinder finder, int length, String path, Map<Integer, SearchHit> hits,
+                               int maxHits) {
+        String text = fields.get(textKey);
+        if (text == null) {
+            return;
+        }
+        String offsets = fields.get(offsetsKey);
+        String display = fields.get(displayKey);
+        if (offsets == null || offsets.isEmpty() || display == null) {
+            // Документ обработан без постраничных смещений - известно только, что совпадение есть
+            if (finder.end(text, 0) >= 0) {
+                hits.putIfAbsent(0, new SearchHit(path, 0, ""));
+            }
+            return;
+        }
+
+        String[] entries = offsets.split(",");
+        int[] numbers = new int[entries.length];
+        int[] starts = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            int colon = entries[i].indexOf(':');
+            numbers[i] = Integer.parseInt(entries[i].substring(0, colon));
+            starts[i] = Integer.parseInt(entries[i].substring(colon + 1));
+        }
+        String[] displayPages = null;
+
+        int from = 0;
+        while (hits.size() < maxHits) {
+            int end = finder.end(text, from);
+            if (end < 0) {
+                break;
+            }
+            int match = Math.max(end - length, 0);
+            int slot = pageSlot(starts, match);
+            if (!hits.containsKey(numbers[slot])) {
+                if (displayPages == null) {
+                    displayPages = display.split(String.valueOf(PAGE_SEPARATOR), -1);
+                }
+                String snippet = slot < displayPages.length
+                        ? snippet(displayPages[slot], match - starts[slot], end - match) : "";
+                hits.put(numbers[slot], new SearchHit(path, numbers[slot], snippet));
+            }
+            // На странице нужен только первый фрагмент - продолжаем со следующей
+            from = slot + 1 < starts.length ? Math.max(starts[slot + 1], match + 1) : text.length();
+        }
+    }
+
+    /**
+     * @return Index of the last page starting at or before the offset
+     */
+    static int pageSlot(int[] starts, int offset) {
+        int slot = Arrays.binarySearch(starts, offset);
+        if (slot < 0) {
+            slot = -slot - 2;
+        }
+        // У пустых страниц одинаковые начала - берём последнюю из них
+        while (slot + 1 < starts.length && starts[slot + 1] == offset) {
+            slot++;
+        }
+        return Math.max(slot, 0);
+    }
+
+    /**
+     * Cut the display text around a match given by offsets in the searchable text of the page
+     */
+    static String snippet(String page, int matchStart, int matchLength) {
+        // Нормализуем страницу заново, запоминая, откуда взят каждый символ
+        char[] normalized = new char[page.length()];
+        int[] sourceOffsets = new int[page.length()];
+        int length = TextNormalizer.DEFAULT.normalize(page, normalized, sourceOffsets);
+        // Нечёткое совпадение может зайти на следующую страницу
+        matchLength = Math.min(matchLength, length - matchStart);
+        if (matchStart < 0 || matchLength <= 0) {
+            return "";
+        }
+        int start = sourceOffsets[matchStart];
+        int end = sourceOffsets[matchStart + matchLength - 1] + 1;
+
+        int from = Math.max(0, start - SNIPPET_CHARS);
+        int to = Math.min(page.length(), end + SNIPPET_CHARS);
+        // Не режем слова по краям фрагмента
+        while (from > 0 && from < start && page.charAt(from - 1) != ' ') {
+            from++;
+        }
+        while (to < page.length() && to > end && page.charAt(to) != ' ') {
+            to--;
+        }
+        return (from > 0 ? "..." : "") + page.substring(from, to).trim() + (to < page.length() ? "..." : "");
+    }
+
+    private interface MatchFinder {
+        int end(String text, int from);
+    }
+}
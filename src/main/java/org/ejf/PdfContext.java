@@ -0,0 +1,341 @@
+package org.ejf;
+
+import com.itextpdf.io.source.IRandomAccessSource;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.kernel.pdf.ReaderProperties;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Контекст обработки одного PDF: файл отображается в память один раз,
+ * а PDFBox и iText разбирают документ лениво и не более одного раза.
+ * Все этапы (текстовый слой, проверка шифрования, рендеринг, OCR) берут документ отсюда.
+ * <p>
+ * Файлы от {@code pdf.lowMemoryMB} мегабайт (по умолчанию 256, 0 - все файлы, -1 - ни одного)
+ * PDFBox разбирает в режиме экономии памяти: распакованные потоки уходят во временный файл,
+ * в куче их остаётся не больше {@code pdf.scratchMemoryMB}, а шрифты и картинки не кэшируются.
+ * Пиковое использование кучи за время обработки документа попадает в {@link #getStats()}.
+ * <p>
+ * Контекст не потокобезопасен - один документ обрабатывается одним потоком.
+ * Отображение файла снимается в {@link #close()}, чтобы файл можно было сразу переместить или удалить.
+ */
+public class PdfContext implements Closeable {
+
+    public static final int DEFAULT_LOW_MEMORY_MB = 256;
+    public static final int DEFAULT_SCRATCH_MEMORY_MB = 16;
+    private static final int LOW_MEMORY_MB = Integer.getInteger("pdf.lowMemoryMB", DEFAULT_LOW_MEMORY_MB);
+    private static final int SCRATCH_MEMORY_MB = Integer.getInteger("pdf.scratchMemoryMB", DEFAULT_SCRATCH_MEMORY_MB);
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private final Path path;
+    private final ByteBuffer buffer; // null, если файл слишком велик для отображения в память
+    private final boolean lowMemory;
+    private final AtomicLong bytesRead = new AtomicLong();
+    // Куча всей JVM, а не одного документа: при параллельной обработке сюда входят и соседи
+    private final LongAccumulator peakHeap = new LongAccumulator(Math::max, 0);
+    private long parseNanos;
+
+    private PDDocument pdDocument;
+    private PdfDocument iTextDocument;
+    private ScratchFile scratchFile;
+
+    private PdfContext(Path path, ByteBuffer buffer, boolean lowMemory) {
+        this.path = path;
+        this.buffer = buffer;
+        this.lowMemory = lowMemory;
+        sampleHeap();
+    }
+
+    /**
+     * Map the file into memory; the document itself is parsed on first access
+     * @param path Path to the PDF file
+     * @return The context, must be closed by the caller
+     */
+    public static PdfContext open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = size <= Integer.MAX_VALUE
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                    : null;
+            boolean lowMemory = LOW_MEMORY_MB >= 0 && size >= LOW_MEMORY_MB * 1024L * 1024L;
+            return new PdfContext(path, buffer, lowMemory);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return The document parsed by PDFBox, parsing it on the first call
+     */
+    public PDDocument getPDDocument() throws IOException {
+        if (pdDocument == null) {
+            long start = Metrics.start();
+            MemoryUsageSetting memory = lowMemory
+                    ? MemoryUsageSetting.setupMixed(SCRATCH_MEMORY_MB * 1024L * 1024L)
+                    : MemoryUsageSetting.setupMainMemoryOnly();
+            if (buffer != null) {
+                scratchFile = new ScratchFile(memory);
+                PDFParser parser = new PDFParser(new MappedRandomAccessRead(buffer.duplicate(), bytesRead), scratchFile);
+                parser.parse();
+                pdDocument = parser.getPDDocument();
+            } else {
+                pdDocument = PDDocument.load(path.toFile(), memory);
+            }
+            if (lowMemory) {
+                // Кэш ресурсов держит декодированные картинки листа до сборки мусора
+                pdDocument.setResourceCache(null);
+                Metrics.increment("documentsLowMemory");
+            }
+            parseNanos += Metrics.record(Metrics.Stage.PDF_LOAD, start);
+            sampleHeap();
+        }
+        return pdDocument;
+    }
+
+    /**
+     * @return The document parsed by iText, parsing it on the first call
+     */
+    public PdfDocument getITextDocument() throws IOException {
+        if (iTextDocument == null) {
+            long start = Metrics.start();
+            PdfReader reader = buffer != null
+                    ? new PdfReader(new MappedRandomAccessSource(buffer.duplicate(), bytesRead), new ReaderProperties())
+                    : new PdfReader(path.toString());
+            iTextDocument = new PdfDocument(reader);
+            parseNanos += Metrics.record(Metrics.Stage.PDF_LOAD, start);
+        }
+        return iTextDocument;
+    }
+
+    /**
+     * Check encryption with whichever parser has already opened the document,
+     * so the check itself never causes another parse
+     */
+    public boolean isEncrypted() throws IOException {
+        if (pdDocument != null) {
+            return pdDocument.isEncrypted();
+        }
+        return getITextDocument().getReader().isEncrypted();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getParseMillis() {
+        return parseNanos / 1_000_000;
+    }
+
+    public boolean isLowMemory() {
+        return lowMemory;
+    }
+
+    /**
+     * Remember the current heap usage if it is the highest seen while the document is processed;
+     * called between pages, cheap enough for that
+     */
+    public void sampleHeap() {
+        peakHeap.accumulate(MEMORY.getHeapMemoryUsage().getUsed());
+    }
+
+    /**
+     * @return The highest heap usage sampled while the document was processed
+     */
+    public long getPeakHeapBytes() {
+        return peakHeap.get();
+    }
+
+    /**
+     * @return Short I/O summary for the log, e.g. "read 1024 KB, parsed in 15 ms, heap peak 120 MB"
+     */
+    public String getStats() {
+        return "read " + getBytesRead() / 1024 + " KB, parsed in " + getParseMillis() + " ms, heap peak "
+                + getPeakHeapBytes() / (1024 * 1024) + " MB" + (lowMemory ? " (low-memory mode)" : "");
+    }
+
+    @Override
+    public void close() throws IOException {
+        Metrics.add("bytesRead", getBytesRead());
+        try {
+            if (pdDocument != null) {
+                pdDocument.close();
+            }
+        } finally {
+            try {
+                if (iTextDocument != null) {
+                    iTextDocument.close();
+                }
+            } finally {
+                try {
+                    if (scratchFile != null) {
+                        scratchFile.close();
+                    }
+                } finally {
+                    // Разборщики закрыты, их представления буфера больше не используются
+                    Util.unmap(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Источник для PDFBox поверх отображённого в память файла
+     */
+    private static class MappedRandomAccessRead implements RandomAccessRead {
+        private final ByteBuffer buffer;
+        private final AtomicLong bytesRead;
+        private boolean closed;
+
+        MappedRandomAccessRead(ByteBuffer buffer, AtomicLong bytesRead) {
+            this.buffer = buffer;
+            this.bytesRead = bytesRead;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            bytesRead.incrementAndGet();
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b) {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            bytesRead.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long getPosition() {
+            return buffer.position();
+        }
+
+        @Override
+        public void seek(long position) throws IOException {
+            if (position < 0) {
+                throw new IOException("Invalid position " + position);
+            }
+            buffer.position((int) Math.min(position, buffer.limit()));
+        }
+
+        @Override
+        public long length() {
+            return buffer.limit();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public int peek() {
+            return buffer.hasRemaining() ? buffer.get(buffer.position()) & 0xff : -1;
+        }
+
+        @Override
+        public void rewind(int bytes) {
+            buffer.position(buffer.position() - bytes);
+        }
+
+        @Override
+        public byte[] readFully(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                throw new EOFException("Premature end of buffer reached");
+            }
+            byte[] b = new byte[length];
+            buffer.get(b);
+            bytesRead.addAndGet(length);
+            return b;
+        }
+
+        @Override
+        public boolean isEOF() {
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * Источник для iText поверх того же буфера; close() не освобождает отображение,
+     * потому что буфер может ещё читать PDFBox
+     */
+    private static class MappedRandomAccessSource implements IRandomAccessSource {
+        private final ByteBuffer buffer;
+        private final AtomicLong bytesRead;
+
+        MappedRandomAccessSource(ByteBuffer buffer, AtomicLong bytesRead) {
+            this.buffer = buffer;
+            this.bytesRead = bytesRead;
+        }
+
+        @Override
+        public int get(long position) {
+            if (position >= buffer.limit()) {
+                return -1;
+            }
+            bytesRead.incrementAndGet();
+            return buffer.get((int) position) & 0xff;
+        }
+
+        @Override
+        public int get(long position, byte[] bytes, int off, int len) {
+            if (position >= buffer.limit()) {
+                return -1;
+            }
+            int n = (int) Math.min(len, buffer.limit() - position);
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) position);
+            view.get(bytes, off, n);
+            bytesRead.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return buffer.limit();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.ejf;
+
+/**
+ * Найденное вхождение: документ, номер страницы и фрагмент текста вокруг совпадения.
+ * Для документов, обработанных до появления постраничных смещений, страница равна 0, а фрагмент пуст.
+ */
+public class SearchHit {
+
+    public final String path;
+    public final int page;
+    public final String snippet;
+
+    public SearchHit(String path, int page, String snippet) {
+        this.path = path;
+        this.page = page;
+        this.snippet = snippet;
+    }
+
+    @Override
+    public String toString() {
+        return path + (page > 0 ? " p." + page : "") + (snippet.isEmpty() ? "" : ": " + snippet);
+    }
+}
@@ -0,0 +1,120 @@
+package org.ejf;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Постоянно работающий сервер поиска: индекс загружается один раз при старте,
+ * запросы обслуживаются по HTTP на локальном адресе, а новые и изменённые файлы
+ * дообрабатываются в фоне.
+ * <p>
+ * Запрос: {@code GET /search?q=текст}, ответ - по строке на найденную страницу: ссылка на документ
+ * в том же виде, в каком её печатает {@link Main}, и через табуляцию фрагмент текста вокруг совпадения.
+ * С параметром {@code fuzzy=1} слова запроса ищутся с опечатками ({@link DocsCatalog#findFuzzyHits(String)}).
+ * Запрос с операторами {@code AND}, {@code OR}, {@code NOT}, фразами в кавычках или префиксами {@code слово*}
+ * выполняется по индексу слов ({@link BooleanQuery}).
+ * Изменения в папке подхватываются {@link DirectoryWatcher} по событиям файловой системы.
+ * {@code GET /metrics} отдаёт текущую статистику по этапам обработки ({@link Metrics#report()}).
+ */
+public class SearchServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    private static final int QUERY_THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: java SearchServer <folder> [port] [workers]");
+            return;
+        }
+
+        String folderPath = args[0];
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : PDFSearcherWithOCR.DEFAULT_WORKERS;
+
+        Metrics.startReporting();
+        DocsCatalog catalog = DocsCatalog.open(folderPath);
+        System.out.println(catalog.size() + " documents loaded");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/search", exchange -> handleSearch(exchange, catalog));
+        server.createContext("/metrics", exchange -> respond(exchange, 200, Metrics.report()));
+        server.setExecutor(Executors.newFixedThreadPool(QUERY_THREADS));
+        server.start();
+        System.out.println("Search server is listening on http://localhost:" + port + "/search?q=...");
+
+        // Фоновая дообработка: полная сверка после старта, затем только изменившиеся файлы
+        DirectoryWatcher watcher = new DirectoryWatcher(catalog, folderPath, workers);
+        Thread indexer = new Thread(watcher, "directory-watcher");
+        indexer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(0);
+            indexer.interrupt();
+            try {
+                watcher.close();
+                indexer.join();
+                catalog.close();
+            } catch (IOException e) {
+                System.err.println("Error closing the catalog: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    private static void handleSearch(HttpExchange exchange, DocsCatalog catalog) throws IOException {
+        try {
+            String query = queryParameter(exchange.getRequestURI().getRawQuery(), "q");
+            if (query == null || query.isEmpty()) {
+                respond(exchange, 400, "Usage: /search?q=<search_text>\n");
+                return;
+            }
+
+            long start = System.nanoTime();
+            boolean fuzzy = "1".equals(queryParameter(exchange.getRequestURI().getRawQuery(), "fuzzy"));
+            List<SearchHit> results = fuzzy ? catalog.findFuzzyHits(query)
+                    : BooleanQuery.isBooleanQuery(query) ? catalog.findQueryHits(query)
+                    : catalog.findHits(query);
+            long micros = (System.nanoTime() - start) / 1000;
+            System.out.println("Query '" + query + "': " + results.size() + " pages in " + micros + " us");
+
+            StringBuilder body = new StringBuilder();
+            results.forEach(hit -> body.append(Main.toLink(hit)).append('\t').append(hit.snippet).append('\n'));
+            respond(exchange, 200, body.toString());
+        } catch (Exception e) {
+            respond(exchange, 500, "ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    static String queryParameter(String rawQuery, String name) {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (key.equals(name)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.ejf;
+
+/**
+ * Поиск подстроки в тексте, поступающем по частям (например, постранично), без учёта регистра.
+ * Алгоритм Кнута-Морриса-Пратта: каждый символ просматривается один раз, а между частями
+ * хранится только состояние автомата, поэтому совпадение на стыке страниц тоже находится.
+ * Накапливать текст и копировать его в нижний регистр не нужно.
+ */
+public class StreamingMatcher {
+
+    private final char[] pattern;
+    private final int[] failure;
+    private int state;
+    private boolean found;
+
+    public StreamingMatcher(String searchText) {
+        pattern = searchText.toLowerCase().toCharArray();
+        failure = new int[pattern.length];
+        for (int i = 1, k = 0; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = failure[k - 1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+        found = pattern.length == 0;
+    }
+
+    /**
+     * Consume the next part of the text
+     * @param text The next part
+     * @return Whether the search text has been found so far
+     */
+    public boolean feed(CharSequence text) {
+        for (int i = 0; i < text.length() && !found; i++) {
+            feed(text.charAt(i));
+        }
+        return found;
+    }
+
+    /**
+     * Consume one character of the text
+     * @return Whether the search text has been found so far
+     */
+    public boolean feed(char c) {
+        if (found) {
+            return true;
+        }
+        c = Character.toLowerCase(c);
+        while (state > 0 && pattern[state] != c) {
+            state = failure[state - 1];
+        }
+        if (pattern[state] == c) {
+            state++;
+        }
+        if (state == pattern.length) {
+            found = true;
+        }
+        return found;
+    }
+
+    public boolean isFound() {
+        return found;
+    }
+}
@@ -0,0 +1,52 @@
+package org.ejf;
+
+import net.sourceforge.tess4j.ITessAPI;
+import net.sourceforge.tess4j.ITesseract;
+import net.sourceforge.tess4j.Tesseract;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Пул движков Tesseract: экземпляр {@link Tesseract} не потокобезопасен,
+ * поэтому каждый поток OCR берёт свой движок из пула и возвращает его после работы.
+ */
+public class TesseractPool {
+
+    private final BlockingQueue<ITesseract> engines;
+
+    public TesseractPool(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        }
+        engines = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            engines.add(createTesseract());
+        }
+    }
+
+    /**
+     * Create a Tesseract engine configured for Russian + English
+     * @return The new engine
+     */
+    public static ITesseract createTesseract() {
+        ITesseract tesseract = new Tesseract();
+        // Настройка Tesseract для русского языка
+        tesseract.setDatapath("tessdata"); // путь к tessdata
+        tesseract.setLanguage("rus+eng");
+        tesseract.setPageSegMode(ITessAPI.TessPageSegMode.PSM_AUTO);
+        return tesseract;
+    }
+
+    /**
+     * Take an engine from the pool, waiting until one is free
+     * @return The borrowed engine, must be given back with {@link #release(ITesseract)}
+     */
+    public ITesseract borrow() throws InterruptedException {
+        return engines.take();
+    }
+
+    public void release(ITesseract tesseract) {
+        engines.offer(tesseract);
+    }
+}
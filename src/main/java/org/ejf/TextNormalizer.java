@@ -0,0 +1,158 @@
+package org.ejf;
+
+/**
+ * Нормализация текста для поиска за один проход по таблице символов.
+ * <p>
+ * Таблица на все 65536 символов строится один раз: буква переводится в нижний регистр
+ * (ё - в е, если включено), латиница и цифры сохраняются или выбрасываются по настройке,
+ * всё остальное - разделитель. Подряд идущие разделители схлопываются в один пробел
+ * (или выбрасываются совсем, как раньше делал {@code cleanText}).
+ * <p>
+ * Тексты документов и запросы нормализуются одним и тем же экземпляром, правила задаются
+ * системными свойствами {@code normalizer.foldYo}, {@code normalizer.latin}, {@code normalizer.digits},
+ * {@code normalizer.spaces} (все по умолчанию true).
+ */
+public final class TextNormalizer {
+
+    // Служебные значения таблицы; ни один из этих символов не может быть результатом нормализации
+    private static final char DROP = '\0';
+    private static final char SEPARATOR = '\1';
+
+    public static final TextNormalizer DEFAULT = fromSystemProperties();
+
+    private final char[] table = new char[Character.MAX_VALUE + 1];
+    private final boolean keepSpaces;
+    private final String rules;
+
+    public TextNormalizer(boolean foldYo, boolean keepLatin, boolean keepDigits, boolean keepSpaces) {
+        this.keepSpaces = keepSpaces;
+        this.rules = "cyrillic" + (foldYo ? ",yo" : "") + (keepLatin ? ",latin" : "")
+                + (keepDigits ? ",digits" : "") + (keepSpaces ? ",spaces" : "");
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            table[c] = classify((char) c, foldYo, keepLatin, keepDigits);
+        }
+    }
+
+    /**
+     * Create the normalizer from system properties, falling back to the defaults
+     * @return The configured normalizer
+     */
+    public static TextNormalizer fromSystemProperties() {
+        return new TextNormalizer(
+                flag("normalizer.foldYo"),
+                flag("normalizer.latin"),
+                flag("normalizer.digits"),
+                flag("normalizer.spaces"));
+    }
+
+    /**
+     * @return Description of the rules; texts normalized with different rules are not comparable
+     */
+    public String getRules() {
+        return rules;
+    }
+
+    /**
+     * @return Whether words are kept apart by single spaces
+     */
+    public boolean keepsSpaces() {
+        return keepSpaces;
+    }
+
+    /**
+     * Normalize a text
+     * @param input The text
+     * @return The normalized text
+     */
+    public String normalize(CharSequence input) {
+        if (input == null) {
+            return null;
+        }
+        char[] out = new char[input.length()];
+        return new String(out, 0, normalize(input, out, null));
+    }
+
+    /**
+     * Normalize a text into a buffer, optionally remembering where every output character came from
+     * @param input The text
+     * @param out Output buffer, at least as long as the input
+     * @param sourceOffsets Receives the input index of every output character, may be null
+     * @return Length of the normalized text
+     */
+    public int normalize(CharSequence input, char[] out, int[] sourceOffsets) {
+        int length = 0;
+        boolean separator = false;
+        for (int i = 0; i < input.length(); i++) {
+            char c = table[input.charAt(i)];
+            if (c == DROP) {
+                continue;
+            }
+            if (c == SEPARATOR) {
+                separator = keepSpaces;
+                continue;
+            }
+            if (separator && length > 0) {
+                if (sourceOffsets != null) {
+                    sourceOffsets[length] = i - 1;
+                }
+                out[length++] = ' ';
+            }
+            separator = false;
+            if (sourceOffsets != null) {
+                sourceOffsets[length] = i;
+            }
+            out[length++] = c;
+        }
+        return length;
+    }
+
+    /**
+     * Normalize a part of a buffer in place, without allocating
+     * @param buffer The buffer
+     * @param offset Start of the text
+     * @param length Length of the text
+     * @return Length of the normalized text, which starts at the same offset
+     */
+    public int normalizeInPlace(char[] buffer, int offset, int length) {
+        int to = offset;
+        boolean separator = false;
+        for (int i = offset; i < offset + length; i++) {
+            char c = table[buffer[i]];
+            if (c == DROP) {
+                continue;
+            }
+            if (c == SEPARATOR) {
+                separator = keepSpaces;
+                continue;
+            }
+            if (separator && to > offset) {
+                buffer[to++] = ' ';
+            }
+            separator = false;
+            buffer[to++] = c;
+        }
+        return to - offset;
+    }
+
+    private static char classify(char c, boolean foldYo, boolean keepLatin, boolean keepDigits) {
+        if (c >= '0' && c <= '9') {
+            return keepDigits ? c : SEPARATOR;
+        }
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            return keepLatin ? Character.toLowerCase(c) : SEPARATOR;
+        }
+        if (Character.UnicodeBlock.of(c) == Character.UnicodeBlock.CYRILLIC && Character.isLetter(c)) {
+            char lower = Character.toLowerCase(c);
+            return foldYo && lower == 'ё' ? 'е' : lower;
+        }
+        // Мягкий перенос и символы нулевой ширины не разделяют слово
+        if (c == '\u00AD' || c == '\u200B' || c == '\u200C' || c == '\u200D' || c == '\uFEFF') {
+            return DROP;
+        }
+        return SEPARATOR;
+    }
+
+    private static boolean flag(String name) {
+        return Boolean.parseBoolean(System.getProperty(name, "true"));
+    }
+}
@@ -0,0 +1,474 @@
+package org.ejf;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Хранилище текстов документов из сегментов, в которые новые документы только дописываются.
+ * <p>
+ * Каталог хранилища содержит файлы сегментов {@code segment-NNNNN.dat} с компактными
+ * бинарными записями и журнал {@code directory.log} с положением каждой записи.
+ * При открытии в память читается только журнал, сами тексты читаются лениво
+ * через отображение сегментов в память; отображения снимаются при закрытии и уплотнении,
+ * чтобы старые сегменты можно было удалить. Перезаписанные и удалённые документы
+ * оставляют мусор, который убирается уплотнением {@link #compactIfNeeded()}.
+ */
+public class TextStore implements Closeable {
+
+    private static final String DIRECTORY_FILE = "directory.log";
+    // Есть, пока перенос из JSON не закончен: прерванный перенос продолжается при следующем открытии
+    private static final String MIGRATION_MARKER = "migration.pending";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final double COMPACTION_GARBAGE_RATIO = 0.5;
+
+    private final Path dir;
+    // Читается без блокировки; уплотнение собирает новую карту отдельно и подменяет её целиком
+    private volatile Map<String, Location> directory = new ConcurrentHashMap<>();
+    private final Map<Integer, ByteBuffer> mappedSegments = new ConcurrentHashMap<>();
+
+    private FileOutputStream directoryFile;
+    private DataOutputStream directoryOut;
+    private FileChannel activeSegment;
+    private int activeSegmentId;
+    private long liveBytes;
+    private long totalBytes;
+
+    private TextStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Open the store, creating it and migrating the legacy JSON texts file on first use.
+     * A migration interrupted by a crash is resumed on the next open.
+     * @param dirPath Directory of the store
+     * @param legacyJsonFile The old pretty-printed JSON cache, migrated once if the store doesn't exist yet
+     * @return The opened store, must be closed by the caller
+     */
+    public static TextStore open(String dirPath, String legacyJsonFile) throws IOException {
+        Path dir = Paths.get(dirPath);
+        boolean exists = Files.exists(dir.resolve(DIRECTORY_FILE));
+        Files.createDirectories(dir);
+        Path marker = dir.resolve(MIGRATION_MARKER);
+        boolean legacy = legacyJsonFile != null && new File(legacyJsonFile).exists();
+        // Метка ставится до первой записи, поэтому хранилище без метки перенесено целиком
+        if (!exists && legacy) {
+            Files.write(marker, new byte[0]);
+        }
+
+        TextStore store = new TextStore(dir);
+        store.readDirectory();
+        store.openForAppend();
+
+        if (Files.exists(marker)) {
+            if (legacy) {
+                store.migrate(legacyJsonFile);
+                store.sync();
+            }
+            Files.delete(marker);
+        }
+        return store;
+    }
+
+    /**
+     * Copy the documents from the legacy JSON texts file into the store, skipping the ones it already has
+     * @param jsonFile Path to the JSON file
+     */
+    public void migrate(String jsonFile) throws IOException {
+        Map<String, Map<String, String>> nestedMap = Util.loadNestedMapFromFile(jsonFile);
+        int migrated = 0;
+        for (Map.Entry<String, Map<String, String>> entry : nestedMap.entrySet()) {
+            if (!directory.containsKey(entry.getKey())) {
+                put(entry.getKey(), entry.getValue());
+                migrated++;
+            }
+        }
+        System.out.println(migrated + " documents migrated from " + jsonFile + " to " + dir
+                + (migrated < nestedMap.size() ? ", " + (nestedMap.size() - migrated) + " were already there" : ""));
+    }
+
+    public boolean containsKey(String docKey) {
+        return directory.containsKey(docKey);
+    }
+
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(directory.keySet());
+    }
+
+    public int size() {
+        return directory.size();
+    }
+
+    /**
+     * Revision of a document's record: it changes with every put of the document and with compaction,
+     * so an index that remembers it can tell that the document was replaced after the index was saved
+     * @param docKey Key of the document
+     * @return The revision, or -1 if the document isn't stored
+     */
+    public long revision(String docKey) {
+        Location location = directory.get(docKey);
+        return location == null ? -1 : ((long) location.segment << 32) | location.offset;
+    }
+
+    /**
+     * Read a document's texts from its segment
+     * @param docKey Key of the document
+     * @return The document's fields, or null if the document isn't stored
+     */
+    public synchronized Map<String, String> get(String docKey) {
+        Location location = directory.get(docKey);
+        if (location == null) {
+            return null;
+        }
+        long start = Metrics.start();
+        try {
+            ByteBuffer record = segmentBuffer(location);
+            record.position((int) location.offset);
+            record.limit((int) (location.offset + location.length));
+            return decode(record);
+        } catch (IOException e) {
+            System.err.println("Error reading " + docKey + " from the store: " + e.getMessage());
+            return null;
+        } finally {
+            Metrics.record(Metrics.Stage.CACHE_IO, start);
+        }
+    }
+
+    /**
+     * Append a document to the active segment; an existing entry with the same key becomes garbage
+     * @param docKey Key of the document
+     * @param docTexts The document's fields
+     */
+    public synchronized void put(String docKey, Map<String, String> docTexts) throws IOException {
+        long start = Metrics.start();
+        track(docKey, append(docKey, encode(docTexts)));
+        Metrics.record(Metrics.Stage.CACHE_IO, start);
+    }
+
+    /**
+     * @return Location of the appended record
+     */
+    private Location append(String docKey, byte[] record) throws IOException {
+        if (activeSegment.size() + record.length > MAX_SEGMENT_SIZE && activeSegment.size() > 0) {
+            startSegment(activeSegmentId + 1);
+        }
+        long offset = activeSegment.size();
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            activeSegment.write(buffer);
+        }
+        // Запись в журнал - после данных, чтобы журнал не указывал на недописанную запись
+        Location location = new Location(activeSegmentId, offset, record.length);
+        writeDirectoryEntry(docKey, location);
+        return location;
+    }
+
+    /**
+     * Remove a document; its record stays in the segment until compaction
+     * @param docKey Key of the document
+     */
+    public synchronized void remove(String docKey) throws IOException {
+        if (directory.containsKey(docKey)) {
+            writeDirectoryEntry(docKey, null);
+            track(docKey, null);
+        }
+    }
+
+    /**
+     * Force appended records and directory entries to disk.
+     * Every put is already visible to a new process; sync also survives an OS crash or power loss.
+     */
+    public synchronized void sync() throws IOException {
+        directoryOut.flush();
+        activeSegment.force(false);
+        directoryFile.getFD().sync();
+    }
+
+    /**
+     * Rewrite live records into fresh segments if more than half of the stored bytes are garbage.
+     * The records move, so the revisions of all documents change.
+     * @return Whether the store was compacted
+     */
+    public synchronized boolean compactIfNeeded() throws IOException {
+        if (totalBytes == 0 || (totalBytes - liveBytes) < totalBytes * COMPACTION_GARBAGE_RATIO) {
+            return false;
+        }
+        long before = totalBytes;
+
+        Map<String, Location> live = new LinkedHashMap<>(directory);
+        List<Path> oldSegments = listSegments();
+        int firstNewSegment = activeSegmentId + 1;
+
+        closeFiles();
+
+        // Новый журнал пишется во временный файл и атомарно подменяет старый,
+        // живые записи копируются в новые сегменты как есть, без разбора
+        Path tmpDirectory = dir.resolve(DIRECTORY_FILE + ".tmp");
+        openDirectory(tmpDirectory, false);
+        // Новые положения собираются в отдельной карте: читатели без блокировки
+        // (keySet, containsKey, revision) до подмены видят прежнюю карту целиком
+        startSegment(firstNewSegment);
+        Map<String, Location> compacted = new ConcurrentHashMap<>();
+        long compactedBytes = 0;
+        for (Map.Entry<String, Location> entry : live.entrySet()) {
+            Location location = entry.getValue();
+            ByteBuffer buffer = segmentBuffer(location);
+            buffer.position((int) location.offset);
+            byte[] record = new byte[location.length];
+            buffer.get(record);
+            compacted.put(entry.getKey(), append(entry.getKey(), record));
+            compactedBytes += record.length;
+        }
+        closeFiles();
+        unmapSegments();
+        Files.move(tmpDirectory, dir.resolve(DIRECTORY_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        directory = compacted;
+        liveBytes = compactedBytes;
+        totalBytes = compactedBytes;
+        for (Path segment : oldSegments) {
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException e) {
+                System.err.println("Error deleting old segment " + segment + ": " + e.getMessage());
+            }
+        }
+        openForAppend();
+
+        System.out.println("Text store compacted: " + before / 1024 + " KB -> " + totalBytes / 1024 + " KB");
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeFiles();
+        unmapSegments();
+    }
+
+    /**
+     * Все чтения идут под блокировкой хранилища и не выпускают представления буфера наружу,
+     * поэтому отображения можно снять сразу
+     */
+    private void unmapSegments() {
+        mappedSegments.values().forEach(Util::unmap);
+        mappedSegments.clear();
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            if (directoryOut != null) {
+                directoryOut.close();
+                directoryOut = null;
+            }
+        } finally {
+            if (activeSegment != null) {
+                activeSegment.close();
+                activeSegment = null;
+            }
+        }
+    }
+
+    private void track(String docKey, Location location) {
+        Location old = location == null ? directory.remove(docKey) : directory.put(docKey, location);
+        if (old != null) {
+            liveBytes -= old.length;
+        }
+        if (location != null) {
+            liveBytes += location.length;
+            totalBytes += location.length;
+        }
+    }
+
+    private void readDirectory() throws IOException {
+        Path file = dir.resolve(DIRECTORY_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        Map<Integer, Long> segmentSizes = new HashMap<>();
+        for (Path segment : listSegments()) {
+            segmentSizes.put(segmentId(segment), Files.size(segment));
+        }
+        long complete = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)));
+             DataInputStream in = new DataInputStream(counter)) {
+            while (true) {
+                String docKey;
+                Location location;
+                try {
+                    docKey = in.readUTF();
+                    int segment = in.readInt();
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    location = length < 0 ? null : new Location(segment, offset, length);
+                } catch (EOFException e) {
+                    break; // конец журнала или недописанная последняя запись
+                }
+                complete = counter.count;
+                if (location != null && location.offset + location.length > segmentSizes.getOrDefault(location.segment, 0L)) {
+                    continue; // данные записи не успели попасть на диск
+                }
+                track(docKey, location);
+            }
+        }
+        // Недописанный хвост обрезаем, иначе новые записи лягут за ним и при следующем чтении потеряются
+        if (complete < Files.size(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(complete);
+            }
+            System.out.println("Text store directory: torn entry at " + complete + " truncated");
+        }
+    }
+
+    private void openForAppend() throws IOException {
+        openDirectory(dir.resolve(DIRECTORY_FILE), true);
+        List<Path> segments = listSegments();
+        startSegment(segments.isEmpty() ? 1 : segmentId(segments.get(segments.size() - 1)));
+    }
+
+    private void openDirectory(Path file, boolean append) throws IOException {
+        directoryFile = new FileOutputStream(file.toFile(), append);
+        directoryOut = new DataOutputStream(new BufferedOutputStream(directoryFile));
+    }
+
+    private void startSegment(int segmentId) throws IOException {
+        if (activeSegment != null) {
+            activeSegment.close();
+        }
+        activeSegmentId = segmentId;
+        activeSegment = FileChannel.open(segmentPath(segmentId),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void writeDirectoryEntry(String docKey, Location location) throws IOException {
+        directoryOut.writeUTF(docKey);
+        directoryOut.writeInt(location == null ? 0 : location.segment);
+        directoryOut.writeLong(location == null ? 0 : location.offset);
+        directoryOut.writeInt(location == null ? -1 : location.length);
+        directoryOut.flush();
+    }
+
+    /**
+     * @return A private view of the segment mapped far enough to cover the record
+     */
+    private ByteBuffer segmentBuffer(Location location) throws IOException {
+        long end = location.offset + location.length;
+        ByteBuffer mapped = mappedSegments.get(location.segment);
+        if (mapped == null || mapped.capacity() < end) {
+            // Активный сегмент растёт, поэтому при необходимости отображаем его заново
+            try (FileChannel channel = FileChannel.open(segmentPath(location.segment), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            Util.unmap(mappedSegments.put(location.segment, mapped));
+        }
+        return mapped.duplicate();
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            List<Path> segments = new ArrayList<>();
+            stream.forEach(segments::add);
+            segments.sort(Comparator.comparingInt(TextStore::segmentId));
+            return segments;
+        }
+    }
+
+    private Path segmentPath(int segmentId) {
+        return dir.resolve(String.format("%s%05d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+    }
+
+    private static int segmentId(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static byte[] encode(Map<String, String> docTexts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(docTexts.size());
+        for (Map.Entry<String, String> field : docTexts.entrySet()) {
+            writeString(out, field.getKey());
+            writeString(out, field.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, String> decode(ByteBuffer record) {
+        int kFields = record.getInt();
+        Map<String, String> docTexts = new HashMap<>();
+        for (int i = 0; i < kFields; i++) {
+            String name = readString(record);
+            docTexts.put(name, readString(record));
+        }
+        return docTexts;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Поток, считающий прочитанные байты, - по нему находится конец последней целой записи журнала
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Положение записи документа в сегменте
+     */
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package org.ejf;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Инвертированный триграммный индекс по очищенным текстам документов.
+ * Поиск подстроки сводится к пересечению списков документов для всех триграмм запроса,
+ * после чего {@code contains} проверяется только у оставшихся кандидатов.
+ * <p>
+ * Индекс хранится в бинарном файле рядом с кэшем текстов; списки документов
+ * записываются дельтами в формате varint.
+ * <p>
+ * Удалённый или переиндексированный документ остаётся в списках до сохранения; если таких больше
+ * четверти, {@link #save} перенумеровывает документы и в памяти, иначе у долго работающего сервера
+ * списки растут с каждым обновлением.
+ */
+public class TrigramIndex {
+
+    private static final int FORMAT_VERSION = 2;
+    static final double COMPACTION_DELETED_RATIO = 0.25;
+
+    private final List<String> docKeys = new ArrayList<>();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    // Ключ документа -> ревизия его записи в хранилище на момент индексации
+    private final Map<String, Long> revisions = new HashMap<>();
+    private final Map<Long, IntList> postings = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+
+    /**
+     * Load the index from a file and bring it in line with the text store:
+     * index documents it doesn't cover yet or covers at an older revision, and drop documents the store no longer has
+     * @param filePath Path to the index file
+     * @param storedTexts The text store the index is built from
+     * @return The index, rebuilt from scratch if the file is missing or unreadable
+     */
+    public static TrigramIndex loadOrBuild(String filePath, TextStore storedTexts) {
+        TrigramIndex index = new TrigramIndex();
+        File file = new File(filePath);
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                index.read(in);
+            } catch (Exception e) {
+                System.err.println("Error loading index from file, rebuilding it: " + e.getMessage());
+                index = new TrigramIndex();
+            }
+        }
+
+        // Документ, перезаписанный в хранилище после сохранения индекса, индексируется заново
+        int added = 0;
+        for (String docKey : storedTexts.keySet()) {
+            long revision = storedTexts.revision(docKey);
+            if (index.revision(docKey) != revision) {
+                Map<String, String> docTexts = storedTexts.get(docKey);
+                if (docTexts != null) {
+                    index.addDocument(docKey, docTexts, revision);
+                    added++;
+                }
+            }
+        }
+        int removed = 0;
+        for (String docKey : new ArrayList<>(index.docIds.keySet())) {
+            if (!storedTexts.containsKey(docKey)) {
+                index.removeDocument(docKey);
+                removed++;
+            }
+        }
+        if (added > 0 || removed > 0) {
+            System.out.println(added + " documents added to the index or updated, " + removed + " removed");
+            index.save(filePath);
+        }
+        return index;
+    }
+
+    public synchronized boolean contains(String docKey) {
+        return docIds.containsKey(docKey);
+    }
+
+    /**
+     * @return Store revision the document was indexed at, or -1 if it isn't indexed
+     */
+    public synchronized long revision(String docKey) {
+        return revisions.getOrDefault(docKey, -1L);
+    }
+
+    /**
+     * Take the current store revisions of all indexed documents, e.g. after the store was compacted
+     * @param storedTexts The text store the index is in line with
+     */
+    public synchronized void updateRevisions(TextStore storedTexts) {
+        for (String docKey : docIds.keySet()) {
+            revisions.put(docKey, storedTexts.revision(docKey));
+        }
+    }
+
+    public synchronized int size() {
+        return docIds.size();
+    }
+
+    /**
+     * Index text and OCR of one document, replacing the old version if the document is already indexed
+     * @param docKey Key of the document in the texts cache
+     * @param docTexts The document's entry in the texts cache
+     * @param revision Revision of the document's record in the store
+     */
+    public void addDocument(String docKey, Map<String, String> docTexts, long revision) {
+        Set<Long> trigrams = new HashSet<>();
+        collectTrigrams(docTexts.get(PDFSearcherWithOCR.TEXT_KEY), trigrams);
+        collectTrigrams(docTexts.get(PDFSearcherWithOCR.OCR_KEY), trigrams);
+
+        synchronized (this) {
+            removeDocument(docKey);
+            int docId = docKeys.size();
+            docKeys.add(docKey);
+            docIds.put(docKey, docId);
+            revisions.put(docKey, revision);
+            // Идентификаторы только растут, поэтому списки остаются отсортированными
+            for (Long trigram : trigrams) {
+                postings.computeIfAbsent(trigram, k -> new IntList()).add(docId);
+            }
+        }
+    }
+
+    /**
+     * Remove a document from the index; its id stays in the posting lists
+     * but is skipped by queries and dropped when the index is saved
+     * @param docKey Key of the document in the texts cache
+     */
+    public synchronized void removeDocument(String docKey) {
+        Integer docId = docIds.remove(docKey);
+        revisions.remove(docKey);
+        if (docId != null) {
+            deleted.set(docId);
+        }
+    }
+
+    /**
+     * Find documents that contain every trigram of the query.
+     * The result is a superset of the real matches, so the caller still has to verify them.
+     * @param query Already normalized query
+     * @return Keys of candidate documents, or null if the query is too short to use the index
+     */
+    public synchronized Set<String> candidates(String query) {
+        if (query.length() < 3) {
+            return null;
+        }
+        Set<Long> trigrams = new HashSet<>();
+        collectTrigrams(query, trigrams);
+
+        List<IntList> lists = new ArrayList<>();
+        for (Long trigram : trigrams) {
+            IntList list = postings.get(trigram);
+            if (list == null) {
+                return Collections.emptySet();
+            }
+            lists.add(list);
+        }
+        // Начинаем с самого короткого списка, чтобы промежуточный результат был минимальным
+        lists.sort(Comparator.comparingInt(list -> list.size));
+
+        int[] result = Arrays.copyOf(lists.get(0).values, lists.get(0).size);
+        int resultSize = result.length;
+        for (int i = 1; i < lists.size() && resultSize > 0; i++) {
+            resultSize = intersect(result, resultSize, lists.get(i));
+        }
+
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < resultSize; i++) {
+            if (!deleted.get(result[i])) {
+                keys.add(docKeys.get(result[i]));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Find documents that may contain the term with at most maxErrors edits.
+     * Every edit spoils at most 3 trigrams of the term, so a document has to contain at least
+     * (number of trigrams - 3 * maxErrors) of them; characters OCR confuses are tried in every variant.
+     * @param term Already normalized term
+     * @param maxErrors Maximum number of edits
+     * @return Keys of candidate documents, or null if the term is too short to filter by the index
+     */
+    public synchronized Set<String> fuzzyCandidates(String term, int maxErrors) {
+        int positions = term.length() - 2;
+        int minShared = positions - 3 * maxErrors;
+        if (positions < 1 || minShared < 1) {
+            return null;
+        }
+        int[] counts = new int[docKeys.size()];
+        int[] lastPosition = new int[docKeys.size()];
+        Arrays.fill(lastPosition, -1);
+        for (int p = 0; p < positions; p++) {
+            String first = FuzzyMatcher.equivalents(term.charAt(p));
+            String second = FuzzyMatcher.equivalents(term.charAt(p + 1));
+            String third = FuzzyMatcher.equivalents(term.charAt(p + 2));
+            for (int a = 0; a < first.length(); a++) {
+                for (int b = 0; b < second.length(); b++) {
+                    for (int c = 0; c < third.length(); c++) {
+                        IntList list = postings.get(trigram(first.charAt(a), second.charAt(b), third.charAt(c)));
+                        if (list == null) {
+                            continue;
+                        }
+                        // Позиция засчитывается документу один раз, каким бы вариантом она ни совпала
+                        for (int i = 0; i < list.size; i++) {
+                            int docId = list.values[i];
+                            if (lastPosition[docId] != p) {
+                                lastPosition[docId] = p;
+                                counts[docId]++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        Set<String> keys = new HashSet<>();
+        for (int docId = 0; docId < counts.length; docId++) {
+            if (counts[docId] >= minShared && !deleted.get(docId)) {
+                keys.add(docKeys.get(docId));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Save the index to a file
+     * @param filePath Path to the output file
+     */
+    public synchronized void save(String filePath) {
+        compactIfNeeded();
+        File file = new File(filePath);
+        File tmp = new File(filePath + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            write(out);
+        } catch (Exception e) {
+            System.err.println("Error saving index to file: " + e.getMessage());
+            return;
+        }
+        try {
+            // Старый файл подменяется атомарно: при сбое остаётся либо прежний индекс, либо новый
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error saving index to file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Intersect sorted ids in place with a sorted posting list
+     * @return The new size of the result
+     */
+    private static int intersect(int[] result, int resultSize, IntList list) {
+        int size = 0;
+        int j = 0;
+        for (int i = 0; i < resultSize && j < list.size; i++) {
+            int docId = result[i];
+            while (j < list.size && list.values[j] < docId) {
+                j++;
+            }
+            if (j < list.size && list.values[j] == docId) {
+                result[size++] = docId;
+            }
+        }
+        return size;
+    }
+
+    private static void collectTrigrams(String text, Set<Long> trigrams) {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            trigrams.add(trigram(text.charAt(i), text.charAt(i + 1), text.charAt(i + 2)));
+        }
+    }
+
+    private static long trigram(char c1, char c2, char c3) {
+        return ((long) c1 << 32) | ((long) c2 << 16) | c3;
+    }
+
+    /**
+     * Drop removed documents from memory once they make up a large share of the ids
+     */
+    private void compactIfNeeded() {
+        int removed = deleted.cardinality();
+        if (removed == 0 || removed < docKeys.size() * COMPACTION_DELETED_RATIO) {
+            return;
+        }
+        int[] newIds = renumber();
+        List<String> liveKeys = new ArrayList<>(docKeys.size() - removed);
+        for (int docId = 0; docId < docKeys.size(); docId++) {
+            if (newIds[docId] >= 0) {
+                liveKeys.add(docKeys.get(docId));
+                docIds.put(docKeys.get(docId), newIds[docId]);
+            }
+        }
+        docKeys.clear();
+        docKeys.addAll(liveKeys);
+        // Перенумерация сохраняет порядок, поэтому списки остаются отсортированными
+        Iterator<IntList> lists = postings.values().iterator();
+        while (lists.hasNext()) {
+            IntList list = lists.next();
+            int size = 0;
+            for (int i = 0; i < list.size; i++) {
+                int newId = newIds[list.values[i]];
+                if (newId >= 0) {
+                    list.values[size++] = newId;
+                }
+            }
+            list.size = size;
+            if (size == 0) {
+                lists.remove();
+            }
+        }
+        deleted.clear();
+    }
+
+    /**
+     * @return New id of every document: removed ones get -1, the rest consecutive ids in the same order
+     */
+    private int[] renumber() {
+        int[] newIds = new int[docKeys.size()];
+        int kDocs = 0;
+        for (int docId = 0; docId < docKeys.size(); docId++) {
+            newIds[docId] = deleted.get(docId) ? -1 : kDocs++;
+        }
+        return newIds;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        // Удалённые документы не записываются, остальные получают сплошные номера
+        int[] newIds = renumber();
+        int kDocs = docKeys.size() - deleted.cardinality();
+
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(kDocs);
+        for (int docId = 0; docId < docKeys.size(); docId++) {
+            if (newIds[docId] >= 0) {
+                out.writeUTF(docKeys.get(docId));
+                out.writeLong(revisions.getOrDefault(docKeys.get(docId), -1L));
+            }
+        }
+        IntList live = new IntList();
+        int kTrigrams = 0;
+        for (Map.Entry<Long, IntList> entry : postings.entrySet()) {
+            if (hasLive(entry.getValue(), newIds)) {
+                kTrigrams++;
+            }
+        }
+        out.writeInt(kTrigrams);
+        for (Map.Entry<Long, IntList> entry : postings.entrySet()) {
+            IntList list = entry.getValue();
+            live.size = 0;
+            for (int i = 0; i < list.size; i++) {
+                int newId = newIds[list.values[i]];
+                if (newId >= 0) {
+                    live.add(newId);
+                }
+            }
+            if (live.size == 0) {
+                continue;
+            }
+            out.writeLong(entry.getKey());
+            writeVarInt(out, live.size);
+            int previous = 0;
+            for (int i = 0; i < live.size; i++) {
+                writeVarInt(out, live.values[i] - previous);
+                previous = live.values[i];
+            }
+        }
+    }
+
+    private static boolean hasLive(IntList list, int[] newIds) {
+        for (int i = 0; i < list.size; i++) {
+            if (newIds[list.values[i]] >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported index version " + version);
+        }
+        int kDocs = in.readInt();
+        for (int i = 0; i < kDocs; i++) {
+            String docKey = in.readUTF();
+            revisions.put(docKey, in.readLong());
+            docIds.put(docKey, docKeys.size());
+            docKeys.add(docKey);
+        }
+        int kTrigrams = in.readInt();
+        for (int i = 0; i < kTrigrams; i++) {
+            long trigram = in.readLong();
+            int size = readVarInt(in);
+            IntList list = new IntList(size);
+            int docId = 0;
+            for (int j = 0; j < size; j++) {
+                docId += readVarInt(in);
+                list.add(docId);
+            }
+            postings.put(trigram, list);
+        }
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Растущий массив int без упаковки в Integer
+     */
+    static class IntList {
+        int[] values;
+        int size;
+
+        IntList() {
+            this(4);
+        }
+
+        IntList(int capacity) {
+            values = new int[Math.max(capacity, 1)];
+        }
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
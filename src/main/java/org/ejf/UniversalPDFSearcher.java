@@ -1,15 +1,25 @@
 package org.ejf;
 
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.canvas.parser.PdfTextExtractor;
+import com.itextpdf.kernel.pdf.canvas.parser.listener.SimpleTextExtractionStrategy;
+import net.sourceforge.tess4j.ITesseract;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.text.PDFTextStripper;
+
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 public class UniversalPDFSearcher {
 
     private static final List<PDFSearcher> searchers = Arrays.asList(
             new ITextSearcher(),
             new PDFBoxSearcher(),
-            new TabulaSearcher()
+            new OcrSearcher()
     );
 
     public static void main(String[] args) throws Exception {
@@ -19,60 +29,156 @@ public class UniversalPDFSearcher {
         }
 
         Path folder = Paths.get(args[0]);
-        String searchText = args[1];
+        String searchText = args[1].toLowerCase();
         List<String> results = new ArrayList<>();
 
-        Files.walk(folder)
+        List<Path> pdfFiles = Files.walk(folder)
                 .filter(Files::isRegularFile)
                 .filter(p -> p.toString().toLowerCase().endsWith(".pdf"))
-                .forEach(pdfPath -> {
-                    System.out.print("\nProcessing: " + pdfPath.getFileName() + " - ");
-
-                    for (PDFSearcher searcher : searchers) {
-                        try {
-                            if (searcher.search(pdfPath, searchText)) {
-                                results.add(pdfPath.toString());
-                                System.out.println("FOUND with " + searcher.getName());
-                                break;
-                            }
-                        } catch (Exception e) {
-                            // Пробуем следующий поисковик
-                        }
-                    }
-                });
+                .collect(Collectors.toList());
+
+        ExtractorEngine engine = new ExtractorEngine(searchers);
+        try {
+            for (Path pdfPath : pdfFiles) {
+                System.out.print("\nProcessing: " + pdfPath.getFileName() + " - ");
+                String foundBy = engine.search(pdfPath, searchText);
+                if (foundBy != null) {
+                    results.add(pdfPath.toString());
+                    System.out.println("FOUND with " + foundBy);
+                }
+            }
+        } finally {
+            engine.shutdown();
+        }
 
         // Вывод результатов
         System.out.println("\n=== RESULTS ===");
         System.out.println("Total files found: " + results.size());
         results.forEach(System.out::println);
+        System.out.println("\n=== EXTRACTORS ===");
+        System.out.print(engine.getStats());
     }
 
+    /**
+     * Извлекатель текста для {@link ExtractorEngine}. Вызывается в отдельном потоке и при отмене
+     * прерывается - реализации проверяют прерывание между страницами.
+     */
     interface PDFSearcher {
         boolean search(Path pdfPath, String searchText) throws Exception;
+
+        /**
+         * Search, telling when the work actually starts: waiting for a shared resource before that
+         * isn't counted against {@link #getTimeoutMillis()}
+         * @param started Called once the extractor has everything it needs to run
+         */
+        default boolean search(Path pdfPath, String searchText, Runnable started) throws Exception {
+            started.run();
+            return search(pdfPath, searchText);
+        }
+
         String getName();
+
+        /**
+         * @return Estimated relative cost of one document, 1 being the cheapest extractor
+         */
+        int getCost();
+
+        /**
+         * @return Time after which the attempt is cancelled
+         */
+        default long getTimeoutMillis() {
+            return TimeUnit.SECONDS.toMillis(Integer.getInteger("extractors.timeoutSeconds", 30));
+        }
     }
 
     static class ITextSearcher implements PDFSearcher {
         public boolean search(Path pdfPath, String searchText) throws Exception {
-            // Реализация iText
-            return false;
+            try (PdfContext context = PdfContext.open(pdfPath)) {
+                PdfDocument pdfDoc = context.getITextDocument();
+                StreamingMatcher matcher = new StreamingMatcher(searchText);
+                for (int i = 1; i <= pdfDoc.getNumberOfPages(); i++) {
+                    checkInterrupted();
+                    matcher.feed(PdfTextExtractor.getTextFromPage(pdfDoc.getPage(i), new SimpleTextExtractionStrategy()));
+                    if (matcher.feed(' ')) {
+                        return true;
+                    }
+                }
+                return false;
+            }
         }
         public String getName() { return "iText"; }
+        public int getCost() { return 1; }
     }
 
     static class PDFBoxSearcher implements PDFSearcher {
         public boolean search(Path pdfPath, String searchText) throws Exception {
-            // Реализация PDFBox
-            return false;
+            try (PdfContext context = PdfContext.open(pdfPath)) {
+                PDDocument document = context.getPDDocument();
+                PDFTextStripper stripper = new PDFTextStripper();
+                stripper.setSortByPosition(true);
+                stripper.setShouldSeparateByBeads(false);
+                StreamingMatcher matcher = new StreamingMatcher(searchText);
+                for (int i = 1; i <= document.getNumberOfPages(); i++) {
+                    checkInterrupted();
+                    stripper.setStartPage(i);
+                    stripper.setEndPage(i);
+                    matcher.feed(AdvancedPDFSearcher.fixCyrillicEncoding(stripper.getText(document)));
+                    if (matcher.feed(' ')) {
+                        return true;
+                    }
+                }
+                return false;
+            }
         }
         public String getName() { return "PDFBox"; }
+        public int getCost() { return 2; }
     }
 
-    static class TabulaSearcher implements PDFSearcher {
+    /**
+     * Распознавание страниц - для сканов, где текстового слоя нет.
+     * Движок один на всех: отменённая попытка доделывает текущую страницу, и следующая ждёт движок,
+     * но её срок начинается только с получения движка.
+     */
+    static class OcrSearcher implements PDFSearcher {
+        private static final TesseractPool tesseractPool = new TesseractPool(1);
+        private static final AdaptiveOcr ocr = AdaptiveOcr.fromSystemProperties();
+
         public boolean search(Path pdfPath, String searchText) throws Exception {
-            // Реализация Tabula
-            return false;
+            return search(pdfPath, searchText, () -> { });
+        }
+
+        @Override
+        public boolean search(Path pdfPath, String searchText, Runnable started) throws Exception {
+            ITesseract tesseract = tesseractPool.borrow();
+            try {
+                started.run();
+                try (PdfContext context = PdfContext.open(pdfPath)) {
+                    PDDocument document = context.getPDDocument();
+                    PDFRenderer renderer = new PDFRenderer(document);
+                    StreamingMatcher matcher = new StreamingMatcher(searchText);
+                    for (int i = 0; i < document.getNumberOfPages(); i++) {
+                        checkInterrupted();
+                        matcher.feed(ocr.ocrPage(renderer, i, tesseract).text);
+                        if (matcher.feed(' ')) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            } finally {
+                tesseractPool.release(tesseract);
+            }
+        }
+        public String getName() { return "OCR"; }
+        public int getCost() { return 50; }
+        public long getTimeoutMillis() {
+            return TimeUnit.SECONDS.toMillis(Integer.getInteger("extractors.ocrTimeoutSeconds", 300));
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
         }
-        public String getName() { return "Tabula"; }
     }
 }
@@ -4,6 +4,9 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.HashMap;
@@ -15,6 +18,28 @@ public class Util {
     private static final TypeReference<Map<String, Map<String, String>>> TYPE_REF =
             new TypeReference<Map<String, Map<String, String>>>() {};
 
+    /**
+     * Unmap a mapped file right away instead of waiting for GC; until then the file stays locked on Windows.
+     * The buffer and every view of it must not be used afterwards.
+     * @param buffer The buffer returned by {@code FileChannel.map}, not a duplicate or slice of it
+     */
+    static void unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            // sun.misc.Unsafe.invokeCleaner есть с Java 9 и не требует --add-opens
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Не получилось - отображение снимет сборщик мусора
+            System.err.println("Can't unmap a buffer: " + e);
+        }
+    }
+
     static String getFormattedCurrentProgressTime(Instant start, Instant finish) {
         Duration dur = Duration.between(start, finish);
         return dur.toHoursPart() + "h " + dur.toMinutesPart() + "m " + dur.toSecondsPart() + "s";
@@ -24,9 +49,37 @@ public class Util {
         if (input == null) {
             return null;
         }
-        // Remove digits, spaces, and special symbols
-        // [^a-zA-Z] means "not a letter" (^ negates the character class)
-        return input.replaceAll("[^а-яА-Я]", "").toLowerCase();
+        long start = Metrics.start();
+        // Один проход по таблице символов, правила - в TextNormalizer
+        String result = TextNormalizer.DEFAULT.normalize(input);
+        Metrics.record(Metrics.Stage.NORMALIZATION, start);
+        return result;
+    }
+
+    /**
+     * Light normalization for display: control characters become spaces, runs of whitespace collapse to one space
+     * @param input Raw extracted text
+     * @return The text as it is shown in snippets
+     */
+    public static String normalizeSpaces(String input) {
+        if (input == null) {
+            return null;
+        }
+        StringBuilder result = new StringBuilder(input.length());
+        boolean space = true;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c) || Character.isSpaceChar(c)) {
+                space = true;
+                continue;
+            }
+            if (space && result.length() > 0) {
+                result.append(' ');
+            }
+            space = false;
+            result.append(c);
+        }
+        return result.toString();
     }
 
     /**
@@ -0,0 +1,517 @@
+package org.ejf;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Инвертированный индекс слов для логических запросов ({@link BooleanQuery}).
+ * Слова - это нормализованные тексты документов, разрезанные по пробелам.
+ * <p>
+ * Список документов слова хранится сжатым: номера документов записываются дельтами в формате varint
+ * блоками по {@value #BLOCK} номеров, а для каждого блока запоминается последний номер в нём и смещение.
+ * Курсор по списку ({@link Cursor#advance(int)}) перепрыгивает блоки, в которых нужного номера
+ * заведомо нет, поэтому пересечение редкого слова с частым почти не распаковывает частое.
+ * Словарь отсортирован, что даёт поиск по префиксу.
+ * <p>
+ * Индекс хранится в бинарном файле рядом с триграммным и так же сверяется с хранилищем при загрузке,
+ * а удалённые документы так же убираются из памяти при сохранении, когда их больше четверти.
+ */
+public class WordIndex {
+
+    private static final int FORMAT_VERSION = 2;
+    static final int BLOCK = 64;
+    static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    private final List<String> docKeys = new ArrayList<>();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    // Ключ документа -> ревизия его записи в хранилище на момент индексации
+    private final Map<String, Long> revisions = new HashMap<>();
+    private final TreeMap<String, PostingList> postings = new TreeMap<>();
+    private final BitSet deleted = new BitSet();
+
+    /**
+     * Load the index from a file and bring it in line with the text store: index documents it doesn't cover yet
+     * or covers at an older revision, and drop documents the store no longer has
+     * @param filePath Path to the index file
+     * @param storedTexts The text store the index is built from
+     * @return The index, rebuilt from scratch if the file is missing or unreadable
+     */
+    public static WordIndex loadOrBuild(String filePath, TextStore storedTexts) {
+        WordIndex index = new WordIndex();
+        File file = new File(filePath);
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                index.read(in);
+            } catch (Exception e) {
+                System.err.println("Error loading word index from file, rebuilding it: " + e.getMessage());
+                index = new WordIndex();
+            }
+        }
+
+        // Документ, перезаписанный в хранилище после сохранения индекса, индексируется заново
+        int added = 0;
+        for (String docKey : storedTexts.keySet()) {
+            long revision = storedTexts.revision(docKey);
+            if (index.revision(docKey) != revision) {
+                Map<String, String> docTexts = storedTexts.get(docKey);
+                if (docTexts != null) {
+                    index.addDocument(docKey, docTexts, revision);
+                    added++;
+                }
+            }
+        }
+        int removed = 0;
+        for (String docKey : new ArrayList<>(index.docIds.keySet())) {
+            if (!storedTexts.containsKey(docKey)) {
+                index.removeDocument(docKey);
+                removed++;
+            }
+        }
+        if (added > 0 || removed > 0) {
+            System.out.println(added + " documents added to the word index or updated, " + removed + " removed");
+            index.save(filePath);
+        }
+        return index;
+    }
+
+    public synchronized boolean contains(String docKey) {
+        return docIds.containsKey(docKey);
+    }
+
+    /**
+     * @return Store revision the document was indexed at, or -1 if it isn't indexed
+     */
+    public synchronized long revision(String docKey) {
+        return revisions.getOrDefault(docKey, -1L);
+    }
+
+    /**
+     * Take the current store revisions of all indexed documents, e.g. after the store was compacted
+     * @param storedTexts The text store the index is in line with
+     */
+    public synchronized void updateRevisions(TextStore storedTexts) {
+        for (String docKey : docIds.keySet()) {
+            revisions.put(docKey, storedTexts.revision(docKey));
+        }
+    }
+
+    /**
+     * Index the words of text and OCR of one document, replacing the old version if it is already indexed
+     * @param docKey Key of the document in the texts cache
+     * @param docTexts The document's entry in the texts cache
+     * @param revision Revision of the document's record in the store
+     */
+    public void addDocument(String docKey, Map<String, String> docTexts, long revision) {
+        Set<String> words = new HashSet<>();
+        collectWords(docTexts.get(PDFSearcherWithOCR.TEXT_KEY), words);
+        collectWords(docTexts.get(PDFSearcherWithOCR.OCR_KEY), words);
+
+        synchronized (this) {
+            removeDocument(docKey);
+            int docId = docKeys.size();
+            docKeys.add(docKey);
+            docIds.put(docKey, docId);
+            revisions.put(docKey, revision);
+            // Идентификаторы только растут, поэтому списки остаются отсортированными
+            for (String word : words) {
+                postings.computeIfAbsent(word, k -> new PostingList()).add(docId);
+            }
+        }
+    }
+
+    /**
+     * Remove a document from the index; its id stays in the posting lists
+     * but is skipped by queries and dropped when the index is saved
+     * @param docKey Key of the document in the texts cache
+     */
+    public synchronized void removeDocument(String docKey) {
+        Integer docId = docIds.remove(docKey);
+        revisions.remove(docKey);
+        if (docId != null) {
+            deleted.set(docId);
+        }
+    }
+
+    /**
+     * Save the index to a file
+     * @param filePath Path to the output file
+     */
+    public synchronized void save(String filePath) {
+        compactIfNeeded();
+        File file = new File(filePath);
+        File tmp = new File(filePath + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            write(out);
+        } catch (Exception e) {
+            System.err.println("Error saving word index to file: " + e.getMessage());
+            return;
+        }
+        try {
+            // Старый файл подменяется атомарно: при сбое остаётся либо прежний индекс, либо новый
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error saving word index to file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evaluate a boolean query
+     * @param query The parsed query
+     * @param verifier Checks phrases against the stored texts of the candidate documents
+     * @return Keys of the matching documents
+     */
+    public synchronized List<String> search(BooleanQuery query, BooleanQuery.PhraseVerifier verifier) {
+        List<String> keys = new ArrayList<>();
+        for (int docId : query.evaluate(this, verifier)) {
+            keys.add(docKeys.get(docId));
+        }
+        return keys;
+    }
+
+    /**
+     * @return Cursor over the documents containing the word, empty if there are none
+     */
+    synchronized Cursor cursor(String word) {
+        PostingList list = postings.get(word);
+        return list == null ? new Cursor(new PostingList(), deleted) : new Cursor(list, deleted);
+    }
+
+    /**
+     * @return Number of documents with the word, including removed ones - an estimate for the planner
+     */
+    synchronized int frequency(String word) {
+        PostingList list = postings.get(word);
+        return list == null ? 0 : list.size;
+    }
+
+    /**
+     * Documents containing any word that starts with the prefix
+     * @return Sorted ids of live documents
+     */
+    synchronized int[] prefixDocuments(String prefix) {
+        BitSet found = new BitSet(docKeys.size());
+        for (PostingList list : postings.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            Cursor cursor = new Cursor(list, deleted);
+            for (int doc = cursor.next(); doc != NO_MORE_DOCS; doc = cursor.next()) {
+                found.set(doc);
+            }
+        }
+        return found.stream().toArray();
+    }
+
+    /**
+     * @return Estimated number of documents with a word starting with the prefix
+     */
+    synchronized long prefixFrequency(String prefix) {
+        long sum = 0;
+        for (PostingList list : postings.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            sum += list.size;
+        }
+        return Math.min(sum, docIds.size());
+    }
+
+    /**
+     * @return Sorted ids of all live documents
+     */
+    synchronized int[] allDocuments() {
+        int[] ids = new int[docIds.size()];
+        int size = 0;
+        for (int docId = deleted.nextClearBit(0); docId < docKeys.size(); docId = deleted.nextClearBit(docId + 1)) {
+            ids[size++] = docId;
+        }
+        return Arrays.copyOf(ids, size);
+    }
+
+    synchronized String docKey(int docId) {
+        return docKeys.get(docId);
+    }
+
+    private static void collectWords(String text, Set<String> words) {
+        if (text == null) {
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i == text.length() || text.charAt(i) == ' ') {
+                if (i > start) {
+                    words.add(text.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Drop removed documents from memory once they make up a large share of the ids
+     */
+    private void compactIfNeeded() {
+        int removed = deleted.cardinality();
+        if (removed == 0 || removed < docKeys.size() * TrigramIndex.COMPACTION_DELETED_RATIO) {
+            return;
+        }
+        int[] newIds = renumber();
+        List<String> liveKeys = new ArrayList<>(docKeys.size() - removed);
+        for (int docId = 0; docId < docKeys.size(); docId++) {
+            if (newIds[docId] >= 0) {
+                liveKeys.add(docKeys.get(docId));
+                docIds.put(docKeys.get(docId), newIds[docId]);
+            }
+        }
+        Iterator<Map.Entry<String, PostingList>> entries = postings.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, PostingList> entry = entries.next();
+            PostingList renumbered = renumbered(entry.getValue(), newIds);
+            if (renumbered.size == 0) {
+                entries.remove();
+            } else {
+                entry.setValue(renumbered);
+            }
+        }
+        docKeys.clear();
+        docKeys.addAll(liveKeys);
+        deleted.clear();
+    }
+
+    /**
+     * @return New id of every document: removed ones get -1, the rest consecutive ids in the same order
+     */
+    private int[] renumber() {
+        int[] newIds = new int[docKeys.size()];
+        int kDocs = 0;
+        for (int docId = 0; docId < docKeys.size(); docId++) {
+            newIds[docId] = deleted.get(docId) ? -1 : kDocs++;
+        }
+        return newIds;
+    }
+
+    /**
+     * @return The list of live documents under their new ids
+     */
+    private PostingList renumbered(PostingList list, int[] newIds) {
+        PostingList renumbered = new PostingList();
+        Cursor cursor = new Cursor(list, deleted);
+        for (int doc = cursor.next(); doc != NO_MORE_DOCS; doc = cursor.next()) {
+            renumbered.add(newIds[doc]);
+        }
+        return renumbered;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        // Удалённые документы не записываются, остальные получают сплошные номера
+        int[] newIds = renumber();
+        int kDocs = docKeys.size() - deleted.cardinality();
+
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(kDocs);
+        for (int docId = 0; docId < docKeys.size(); docId++) {
+            if (newIds[docId] >= 0) {
+                out.writeUTF(docKeys.get(docId));
+                out.writeLong(revisions.getOrDefault(docKeys.get(docId), -1L));
+            }
+        }
+        // Списки перекодируются с новыми номерами, пустые не записываются
+        Map<String, PostingList> live = new LinkedHashMap<>();
+        for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+            PostingList renumbered = renumbered(entry.getValue(), newIds);
+            if (renumbered.size > 0) {
+                live.put(entry.getKey(), renumbered);
+            }
+        }
+        out.writeInt(live.size());
+        for (Map.Entry<String, PostingList> entry : live.entrySet()) {
+            PostingList list = entry.getValue();
+            out.writeUTF(entry.getKey());
+            TrigramIndex.writeVarInt(out, list.size);
+            TrigramIndex.writeVarInt(out, list.length);
+            out.write(list.bytes, 0, list.length);
+        }
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported word index format version " + version);
+        }
+        int kDocs = in.readInt();
+        for (int docId = 0; docId < kDocs; docId++) {
+            String docKey = in.readUTF();
+            revisions.put(docKey, in.readLong());
+            docKeys.add(docKey);
+            docIds.put(docKey, docId);
+        }
+        int kWords = in.readInt();
+        for (int i = 0; i < kWords; i++) {
+            String word = in.readUTF();
+            int size = TrigramIndex.readVarInt(in);
+            byte[] bytes = new byte[TrigramIndex.readVarInt(in)];
+            in.readFully(bytes);
+            postings.put(word, PostingList.decode(bytes, size));
+        }
+    }
+
+    /**
+     * Сжатый список документов: дельты в varint и таблица пропусков по блокам
+     */
+    static class PostingList {
+        byte[] bytes = new byte[8];
+        int length;
+        int size;
+        int last = -1;
+        // Для каждого блока: последний номер в нём, номер перед ним и смещение его начала
+        int[] blockLast = new int[1];
+        int[] blockBase = new int[1];
+        int[] blockOffset = new int[1];
+
+        void add(int docId) {
+            int block = size / BLOCK;
+            if (size % BLOCK == 0) {
+                if (block == blockLast.length) {
+                    blockLast = Arrays.copyOf(blockLast, block * 2);
+                    blockBase = Arrays.copyOf(blockBase, block * 2);
+                    blockOffset = Arrays.copyOf(blockOffset, block * 2);
+                }
+                blockBase[block] = last;
+                blockOffset[block] = length;
+            }
+            writeVarInt(docId - last);
+            blockLast[block] = docId;
+            last = docId;
+            size++;
+        }
+
+        int blocks() {
+            return (size + BLOCK - 1) / BLOCK;
+        }
+
+        private void writeVarInt(int value) {
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+            }
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        /**
+         * Restore the skip table of a list read from the file
+         */
+        static PostingList decode(byte[] bytes, int size) {
+            PostingList list = new PostingList();
+            int pos = 0;
+            int docId = -1;
+            for (int i = 0; i < size; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                docId += delta;
+                list.add(docId);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Курсор по списку документов: номера выдаются по возрастанию, удалённые документы пропускаются
+     */
+    static class Cursor {
+        private final PostingList list;
+        private final BitSet deleted;
+        private int index = -1;
+        private int pos;
+        private int doc = -1;
+
+        Cursor(PostingList list, BitSet deleted) {
+            this.list = list;
+            this.deleted = deleted;
+        }
+
+        int doc() {
+            return doc;
+        }
+
+        /**
+         * @return Upper bound of the number of documents, for ordering the cursors
+         */
+        int cost() {
+            return list.size;
+        }
+
+        /**
+         * @return The next live document, or {@link #NO_MORE_DOCS}
+         */
+        int next() {
+            do {
+                decodeNext();
+            } while (doc != NO_MORE_DOCS && deleted.get(doc));
+            return doc;
+        }
+
+        /**
+         * Move to the first live document at or after the target, skipping whole blocks where possible
+         * @return The document, or {@link #NO_MORE_DOCS}
+         */
+        int advance(int target) {
+            if (doc >= target) {
+                return doc;
+            }
+            int block = Math.max(index, 0) / BLOCK;
+            int blocks = list.blocks();
+            if (block < blocks && list.blockLast[block] < target) {
+                // Первый блок, где есть номер не меньше нужного
+                int low = block + 1;
+                int high = blocks - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    if (list.blockLast[mid] < target) {
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                if (low >= blocks) {
+                    index = list.size;
+                    doc = NO_MORE_DOCS;
+                    return doc;
+                }
+                index = low * BLOCK - 1;
+                pos = list.blockOffset[low];
+                doc = list.blockBase[low];
+            }
+            while (doc < target) {
+                decodeNext();
+            }
+            while (doc != NO_MORE_DOCS && deleted.get(doc)) {
+                decodeNext();
+            }
+            return doc;
+        }
+
+        private void decodeNext() {
+            if (index + 1 >= list.size) {
+                index = list.size;
+                doc = NO_MORE_DOCS;
+                return;
+            }
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = list.bytes[pos++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            doc = (index < 0 ? -1 : doc) + delta;
+            index++;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.ejf;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BooleanQueryTest {
+
+    private final Map<String, String> texts = new LinkedHashMap<>();
+    private WordIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new WordIndex();
+        add("d1", "Район, карта");
+        add("d2", "Район: карта и проект");
+        add("d3", "район схема");
+        add("d4", "Схема (черновик)");
+        add("d5", "Карта - черновик, масштаб 1 10000");
+        // Слова фразы есть, но не подряд - документ отсекается проверкой по тексту
+        add("d6", "масштаб 10000 1 карта");
+    }
+
+    @Test
+    void andNot() {
+        assertEquals(Collections.singletonList("d1"), search("район AND карта NOT проект"));
+        assertEquals(Arrays.asList("d1", "d2"), search("район карта"));
+    }
+
+    @Test
+    void groupedOrWithExclusion() {
+        assertEquals(Arrays.asList("d1", "d2", "d3", "d6"), search("(карта OR схема) -черновик"));
+        assertEquals(Arrays.asList("d1", "d2", "d3", "d4", "d5", "d6"), search("карта OR схема"));
+    }
+
+    @Test
+    void phrase() {
+        assertEquals(Collections.singletonList("d5"), search("\"масштаб 1 10000\""));
+        assertEquals(Collections.singletonList("d5"), search("\"масштаб 1 10000\" карта"));
+        assertEquals(Collections.singletonList("d6"), search("масштаб -\"масштаб 1 10000\""));
+    }
+
+    @Test
+    void prefix() {
+        assertEquals(Arrays.asList("d1", "d2", "d5", "d6"), search("кар*"));
+        assertEquals(Collections.singletonList("d3"), search("схем* -черн*"));
+        assertEquals(Collections.emptyList(), search("нет*"));
+    }
+
+    @Test
+    void unknownWord() {
+        assertEquals(Collections.emptyList(), search("район нетакогослова"));
+        assertEquals(Arrays.asList("d1", "d2", "d3"), search("район OR нетакогослова"));
+    }
+
+    @Test
+    void removedDocument() {
+        index.removeDocument("d1");
+        assertEquals(Collections.singletonList("d2"), search("район карта"));
+    }
+
+    @Test
+    void malformedQueries() {
+        for (String query : Arrays.asList("(карта OR схема", "карта)", "карта AND", "NOT", "-", "( )")) {
+            assertThrows(IllegalArgumentException.class, () -> BooleanQuery.parse(query), query);
+        }
+    }
+
+    private void add(String docKey, String text) {
+        String normalized = Util.cleanText(text);
+        texts.put(docKey, normalized);
+        Map<String, String> docTexts = new HashMap<>();
+        docTexts.put(PDFSearcherWithOCR.TEXT_KEY, normalized);
+        index.addDocument(docKey, docTexts, texts.size());
+    }
+
+    private List<String> search(String query) {
+        return index.search(BooleanQuery.parse(query), (docKey, phrase) -> texts.get(docKey).contains(phrase));
+    }
+}
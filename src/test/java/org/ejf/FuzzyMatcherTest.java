@@ -0,0 +1,87 @@
+package org.ejf;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FuzzyMatcherTest {
+
+    @Test
+    void exactMatchEndOffset() {
+        FuzzyMatcher matcher = new FuzzyMatcher("карта", 0);
+        assertEquals(8, matcher.find("на карта района", 0));
+        assertEquals(-1, matcher.find("на карте района", 0));
+        assertEquals(-1, matcher.find(null, 0));
+    }
+
+    @Test
+    void searchFromOffset() {
+        FuzzyMatcher matcher = new FuzzyMatcher("карта", 0);
+        String text = "карта и карта";
+        assertEquals(5, matcher.find(text, 0));
+        assertEquals(13, matcher.find(text, 5));
+        assertEquals(-1, matcher.find(text, 10));
+    }
+
+    @Test
+    void editDistanceBound() {
+        // Замена, вставка и удаление - по одной ошибке
+        for (String text : new String[]{"масштаб", "масштоб", "масштааб", "маштаб"}) {
+            assertTrue(new FuzzyMatcher("масштаб", 1).find(text, 0) >= 0, text);
+        }
+        assertEquals(-1, new FuzzyMatcher("масштаб", 1).find("мштаб", 0));
+        assertTrue(new FuzzyMatcher("масштаб", 2).find("мштаб", 0) >= 0);
+        assertEquals(-1, new FuzzyMatcher("масштаб", 2).find("мшаб", 0));
+        // Совпадение кончается на первом символе, где ошибок не больше допустимого
+        assertEquals(7, new FuzzyMatcher("карта", 1).find("на карте района", 0));
+    }
+
+    @Test
+    void errorsLimitedByPatternLength() {
+        FuzzyMatcher matcher = new FuzzyMatcher("да", 5);
+        assertEquals(1, matcher.getMaxErrors());
+        assertEquals(-1, matcher.find("нет", 0));
+    }
+
+    @Test
+    void ocrConfusionsAreNotErrors() {
+        assertEquals(5, new FuzzyMatcher("город", 0).find("г0р0д", 0));
+        assertEquals(5, new FuzzyMatcher("линия", 0).find("лнння", 0));
+        // Латинские двойники русских букв
+        assertEquals(5, new FuzzyMatcher("сахар", 0).find("caxap", 0));
+        assertEquals(4, new FuzzyMatcher("зона", 0).find("3oнa", 0));
+        assertEquals(-1, new FuzzyMatcher("дом", 0).find("дым", 0));
+    }
+
+    @Test
+    void confusionClasses() {
+        assertEquals("о0o", FuzzyMatcher.equivalents('0'));
+        assertEquals("ин", FuzzyMatcher.equivalents('н'));
+        assertEquals("ы", FuzzyMatcher.equivalents('ы'));
+    }
+
+    @Test
+    void longPatternIsTruncated() {
+        StringBuilder word = new StringBuilder();
+        while (word.length() < FuzzyMatcher.MAX_LENGTH + 10) {
+            word.append("абвгд");
+        }
+        FuzzyMatcher matcher = new FuzzyMatcher(word.toString(), 0);
+        assertEquals(FuzzyMatcher.MAX_LENGTH, matcher.getPattern().length());
+        assertEquals(FuzzyMatcher.MAX_LENGTH, matcher.find(word, 0));
+    }
+
+    @Test
+    void queryDistances() {
+        List<FuzzyMatcher> matchers = FuzzyMatcher.parseQuery("река~1 Карта масштабный ...");
+        assertEquals(3, matchers.size());
+        assertEquals("масштабный", matchers.get(0).getPattern());
+        assertEquals(2, matchers.get(0).getMaxErrors());
+        assertEquals("карта", matchers.get(1).getPattern());
+        assertEquals(0, matchers.get(1).getMaxErrors());
+        assertEquals("река", matchers.get(2).getPattern());
+        assertEquals(1, matchers.get(2).getMaxErrors());
+    }
+}
@@ -0,0 +1,38 @@
+package org.ejf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrigramIndexTest {
+
+    @Test
+    void saveDropsRemovedDocumentsFromMemory(@TempDir Path dir) {
+        TrigramIndex index = new TrigramIndex();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100; i++) {
+                index.addDocument("doc" + i, texts("документ номер " + i + " версия " + round), round);
+            }
+        }
+        index.removeDocument("doc0");
+        index.save(dir.resolve("index.bin").toString());
+
+        assertEquals(99, index.size());
+        assertEquals(Collections.singleton("doc42"), index.candidates("номер 42 версия 2"));
+        assertTrue(index.candidates("версия 0").isEmpty());
+        assertEquals(99, index.candidates("версия 2").size());
+        // После перенумерации индекс продолжает принимать документы
+        index.addDocument("doc0", texts("документ номер 0 версия 3"), 3);
+        assertEquals(Collections.singleton("doc0"), index.candidates("версия 3"));
+    }
+
+    private static Map<String, String> texts(String text) {
+        Map<String, String> docTexts = new HashMap<>();
+        docTexts.put(PDFSearcherWithOCR.TEXT_KEY, text);
+        return docTexts;
+    }
+}
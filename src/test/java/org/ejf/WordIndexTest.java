@@ -0,0 +1,86 @@
+package org.ejf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WordIndexTest {
+
+    @Test
+    void cursorSkipsBlocksAndRemovedDocuments() {
+        WordIndex index = new WordIndex();
+        int documents = 5 * WordIndex.BLOCK + 10;
+        for (int i = 0; i < documents; i++) {
+            Map<String, String> docTexts = new HashMap<>();
+            docTexts.put(PDFSearcherWithOCR.TEXT_KEY, i % 3 == 0 ? "часто редко" : "часто");
+            index.addDocument("doc" + i, docTexts, i);
+        }
+        // Удалённые документы на границах блоков и целый блок подряд
+        Set<Integer> removed = new TreeSet<>(Arrays.asList(63, 64, 65, 127, 128, documents - 1));
+        for (int i = 2 * WordIndex.BLOCK; i < 3 * WordIndex.BLOCK + 5; i++) {
+            removed.add(i);
+        }
+        removed.forEach(i -> index.removeDocument("doc" + i));
+
+        for (int target = 0; target <= documents + 1; target++) {
+            assertEquals(expected(target, documents, 1, removed), index.cursor("часто").advance(target),
+                    "advance(" + target + ")");
+            assertEquals(expected(target, documents, 3, removed), index.cursor("редко").advance(target),
+                    "advance(" + target + ") of the sparse word");
+        }
+
+        // Один курсор, сдвигаемый вперёд шагами разной длины
+        WordIndex.Cursor cursor = index.cursor("часто");
+        for (int target = 0, step = 1; target <= documents; target += step, step = step * 3 % 97 + 1) {
+            assertEquals(expected(target, documents, 1, removed), cursor.advance(target), "advance(" + target + ")");
+        }
+        assertEquals(WordIndex.NO_MORE_DOCS, cursor.advance(documents));
+
+        List<String> keys = index.search(BooleanQuery.parse("часто редко"), (docKey, phrase) -> false);
+        List<String> expectedKeys = new ArrayList<>();
+        for (int i = 0; i < documents; i += 3) {
+            if (!removed.contains(i)) {
+                expectedKeys.add("doc" + i);
+            }
+        }
+        assertEquals(expectedKeys, keys);
+    }
+
+    private static int expected(int target, int documents, int every, Set<Integer> removed) {
+        for (int doc = target; doc < documents; doc++) {
+            if (doc % every == 0 && !removed.contains(doc)) {
+                return doc;
+            }
+        }
+        return WordIndex.NO_MORE_DOCS;
+    }
+
+    @Test
+    void saveDropsRemovedDocumentsFromMemory(@TempDir Path dir) {
+        WordIndex index = new WordIndex();
+        String[] rounds = {"первый", "второй", "третий"};
+        for (int round = 0; round < rounds.length; round++) {
+            for (int i = 0; i < 100; i++) {
+                Map<String, String> docTexts = new HashMap<>();
+                String parity = i % 2 == 0 ? "чётный " : "нечётный ";
+                docTexts.put(PDFSearcherWithOCR.TEXT_KEY, Util.cleanText(parity + rounds[round]));
+                index.addDocument("doc" + i, docTexts, round);
+            }
+        }
+        index.save(dir.resolve("words.bin").toString());
+
+        // Переиндексированные документы убраны, живые получили сплошные номера
+        int[] ids = index.allDocuments();
+        assertEquals(100, ids.length);
+        assertEquals(99, ids[ids.length - 1]);
+        assertEquals(0, index.frequency("первый"));
+        assertEquals(50, index.search(BooleanQuery.parse("чётный третий"), (docKey, phrase) -> false).size());
+        assertTrue(index.search(BooleanQuery.parse("нечётный третий"), (docKey, phrase) -> false).contains("doc7"));
+        assertEquals(Arrays.asList("doc0", "doc2"),
+                index.search(BooleanQuery.parse("чётный"), (docKey, phrase) -> false).subList(0, 2));
+    }
+}